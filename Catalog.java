@@ -0,0 +1,49 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Read side of the imdb data behind a Storage: movies with their directors
+ * and actors
+ */
+public interface Catalog {
+
+    /* movies whose title matches ilike '%title%' (% and _ are wildcards, as in search
+       on PostgreSQL), in id order and handed to sink chunk movies at a time; directors are
+       "last first", actors too unless actorFirstNameFirst, and the status is left unset */
+    void search(String title, boolean actorFirstNameFirst, int chunk, MovieSink sink) throws Exception;
+
+    /* the same movies as search with actors "last first"; a catalog may find them faster */
+    default void fastSearch(String title, int chunk, MovieSink sink) throws Exception {
+        search(title, false, chunk, sink);
+    }
+
+    /* up to limit matches of search with an id greater than afterMid, actors "first last";
+       without an id-ordered index to start from, this scans and skips */
+    default List<MovieHit> page(String title, int afterMid, int limit, int chunk) throws Exception {
+        List<MovieHit> page = new ArrayList<MovieHit>();
+        search(title, true, chunk, movies -> {
+            for (MovieHit movie : movies) {
+                if (movie.getMid() > afterMid && page.size() < limit)
+                    page.add(movie);
+            }
+        });
+        return page;
+    }
+
+    /* the title of movie mid, or null if there is no such movie */
+    String name(int mid) throws Exception;
+
+    default boolean exists(int mid) throws Exception {
+        return name(mid) != null;
+    }
+
+    /* the titles of mids, null for a missing movie, in the same order */
+    default String[] names(int[] mids) throws Exception {
+        String[] names = new String[mids.length];
+        for (int i = 0; i < mids.length; i++)
+            names[i] = name(mids[i]);
+        return names;
+    }
+
+    void close() throws Exception;
+}
@@ -0,0 +1,41 @@
+/**
+ * Cached name, plan limit and open-rental count of one customer
+ *
+ * Immutable; the rent, return and plan transactions of this process drop
+ * it once they commit or run into a conflict, and it is reloaded at the
+ * next prompt.
+ */
+public class CustomerProfile {
+
+    private final int _cid;
+    private final String _name;
+    private final int _max_movies;
+    private final int _open_rentals;
+
+    public CustomerProfile(int cid, String name, int max_movies, int open_rentals) {
+        _cid = cid;
+        _name = name;
+        _max_movies = max_movies;
+        _open_rentals = open_rentals;
+    }
+
+    public int getCid() {
+        return _cid;
+    }
+
+    public String getName() {
+        return _name;
+    }
+
+    public int getMaxMovies() {
+        return _max_movies;
+    }
+
+    public int getOpenRentals() {
+        return _open_rentals;
+    }
+
+    public int remaining() {
+        return _max_movies - _open_rentals;
+    }
+}
@@ -0,0 +1,51 @@
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Catalog answered in process from a search snapshot file, with no
+ * database behind it
+ *
+ * The file is the one SearchSnapshot writes for snapshotFile; Storage
+ * export writes one from imdb for an embedded store.
+ */
+public class EmbeddedCatalog implements Catalog {
+
+    private final SearchSnapshot _snapshot;
+
+    public EmbeddedCatalog(SearchSnapshot snapshot) {
+        _snapshot = snapshot;
+    }
+
+    public static EmbeddedCatalog open(File path) throws Exception {
+        return new EmbeddedCatalog(SearchSnapshot.map(path));
+    }
+
+    public void search(String title, boolean actorFirstNameFirst, int chunk, MovieSink sink) throws Exception {
+        int[] docs = _snapshot.search(title);
+        for (int first = 0; first < docs.length; first += chunk) {
+            int count = Math.min(chunk, docs.length - first);
+            List<MovieHit> movies = new ArrayList<MovieHit>(count);
+            for (int i = 0; i < count; i++)
+                movies.add(hit(docs[first + i], actorFirstNameFirst));
+            sink.accept(movies);
+        }
+    }
+
+    public String name(int mid) {
+        int doc = _snapshot.doc(mid);
+        return doc < 0 ? null : _snapshot.title(doc);
+    }
+
+    public void close() {
+        /* the mapping is released with the snapshot */
+    }
+
+    private MovieHit hit(int doc, boolean actorFirstNameFirst) {
+        int year = _snapshot.year(doc);
+        MovieHit movie = new MovieHit(_snapshot.id(doc), _snapshot.title(doc),
+                year == TitleIndex.NO_YEAR ? null : Integer.toString(year));
+        _snapshot.addPeople(movie, doc, actorFirstNameFirst);
+        return movie;
+    }
+}
@@ -0,0 +1,408 @@
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Ledger held in process memory and persisted to one local file
+ *
+ * The file starts with an image of the plans, customers and open rentals,
+ * followed by a RecordLog of the writes made since: each write appends its
+ * records and a commit record counting them, and is fsynced before it
+ * changes memory or returns; one that fails to reach the disk is cut off
+ * again and changes nothing.  Once the log outgrows the image (and
+ * CHECKPOINT_BYTES), the state is written out as a fresh image and the log
+ * starts over.  Opening the file loads the image, replays every committed
+ * write (stopping at a torn tail or a commit whose count does not match)
+ * and, if there was a log, checkpoints the same way.  Only open rentals are
+ * kept; closed ones stay in whatever customer database the file was
+ * exported from.
+ *
+ * One monitor guards everything, so writes are serialized; that suits a
+ * single edge store, not a shared server.
+ */
+public class EmbeddedLedger implements Ledger {
+
+    private static final int MAGIC = 0x46534c47; /* "FSLG" */
+    private static final int FORMAT = 1;
+    private static final int HEADER_SIZE = 4 + 4 + 4; /* magic, format, image length */
+
+    /* smallest log worth folding into the image while the ledger is open */
+    private static final long CHECKPOINT_BYTES = 1 << 20;
+
+    /* log records: op and two ints */
+    private static final int RENT = 1;     /* mid, cid */
+    private static final int RETURN = 2;   /* mid, cid */
+    private static final int PLAN = 3;     /* cid, pid */
+    private static final int COMMIT = 4;   /* records in the write, 0 */
+
+    private static class Customer {
+        String login;
+        String password;
+        String fname;
+        String lname;
+        int pid;
+    }
+
+    private final File _path;
+    private RecordLog _log;
+    private int _image;
+
+    /* everything below is guarded by this */
+    private final TreeMap<Integer, RentalPlan> _plans = new TreeMap<Integer, RentalPlan>();
+    private final Map<Integer, Customer> _customers = new HashMap<Integer, Customer>();
+    private final Map<String, Integer> _logins = new HashMap<String, Integer>();
+    private final Map<Integer, Integer> _renter = new HashMap<Integer, Integer>();
+    private final Map<Integer, TreeSet<Integer>> _rented = new HashMap<Integer, TreeSet<Integer>>();
+
+    private EmbeddedLedger(File path) {
+        _path = path;
+    }
+
+    /**********************************************************/
+    /* opening and exporting */
+
+    public static EmbeddedLedger open(File path) throws Exception {
+        EmbeddedLedger ledger = new EmbeddedLedger(path);
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(path), 1 << 16));
+        int image;
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != FORMAT)
+                throw new IllegalStateException("not a ledger file, or an older format: " + path);
+            image = in.readInt();
+            ledger.read_image(in);
+        } finally {
+            in.close();
+        }
+        ledger._image = image;
+        ledger._log = new RecordLog(new RandomAccessFile(path, "rw").getChannel(), HEADER_SIZE + image);
+        ledger.replay();
+        if (ledger._log.size() > 0)
+            ledger.checkpoint();
+        return ledger;
+    }
+
+    /* reads plans, customers and open rentals from the customer database into a new file at path */
+    public static void write(Connection customer_db, File path) throws Exception {
+        EmbeddedLedger ledger = new EmbeddedLedger(path);
+        PreparedStatement plan_statement = Metrics.prepare(customer_db, "embedded_ledger_plans",
+                "SELECT pid, name, max_movies, fee FROM rentalplans");
+        ResultSet plan_set = plan_statement.executeQuery();
+        while (plan_set.next()) {
+            ledger._plans.put(plan_set.getInt(1), new RentalPlan(plan_set.getInt(1), plan_set.getString(2),
+                    plan_set.getInt(3), plan_set.getDouble(4)));
+        }
+        plan_set.close();
+        plan_statement.close();
+
+        PreparedStatement customer_statement = Metrics.prepare(customer_db, "embedded_ledger_customers",
+                "SELECT cid, login, password, fname, lname, pid FROM customers");
+        ResultSet customer_set = customer_statement.executeQuery();
+        while (customer_set.next()) {
+            Customer customer = new Customer();
+            customer.login = customer_set.getString(2);
+            customer.password = customer_set.getString(3);
+            customer.fname = customer_set.getString(4);
+            customer.lname = customer_set.getString(5);
+            customer.pid = customer_set.getInt(6);
+            if (customer_set.wasNull())
+                customer.pid = -1;
+            ledger.add_customer(customer_set.getInt(1), customer);
+        }
+        customer_set.close();
+        customer_statement.close();
+
+        PreparedStatement open_statement = Metrics.prepare(customer_db, "embedded_ledger_open",
+                "SELECT mid, cid FROM movierentals WHERE status = 'open'");
+        ResultSet open_set = open_statement.executeQuery();
+        while (open_set.next())
+            ledger.apply(new int[] { RENT, open_set.getInt(1), open_set.getInt(2) });
+        open_set.close();
+        open_statement.close();
+
+        ledger.write_file();
+    }
+
+    /**********************************************************/
+    /* reads */
+
+    public synchronized int login(String login, String password) {
+        /* a customer without a password cannot log in, as password = ? never matches NULL */
+        Integer cid = _logins.get(login);
+        if (cid == null || _customers.get(cid).password == null || !_customers.get(cid).password.equals(password))
+            return -1;
+        return cid;
+    }
+
+    public synchronized CustomerProfile profile(int cid) {
+        Customer customer = _customers.get(cid);
+        if (customer == null)
+            return null;
+        return new CustomerProfile(cid, customer.fname + " " + customer.lname, max_movies(customer), open(cid));
+    }
+
+    public synchronized List<RentalPlan> plans() {
+        return new ArrayList<RentalPlan>(_plans.values());
+    }
+
+    public synchronized RentalPlan plan(int pid) {
+        return _plans.get(pid);
+    }
+
+    public synchronized int[] renters(int[] mids) {
+        int[] renters = new int[mids.length];
+        for (int i = 0; i < mids.length; i++)
+            renters[i] = _renter.getOrDefault(mids[i], -1);
+        return renters;
+    }
+
+    public synchronized int[] rentals(int cid) {
+        TreeSet<Integer> rented = _rented.get(cid);
+        if (rented == null)
+            return new int[0];
+        int[] mids = new int[rented.size()];
+        int i = 0;
+        for (int mid : rented)
+            mids[i++] = mid;
+        return mids;
+    }
+
+    /**********************************************************/
+    /* writes */
+
+    public synchronized boolean rent(int cid, int[] mids) throws Exception {
+        Customer customer = _customers.get(cid);
+        if (customer == null || open(cid) + mids.length > max_movies(customer))
+            return false;
+        List<int[]> records = new ArrayList<int[]>();
+        for (int mid : mids) {
+            if (_renter.containsKey(mid))
+                return false;
+            records.add(new int[] { RENT, mid, cid });
+        }
+        commit(records);
+        return true;
+    }
+
+    public synchronized boolean giveBack(int cid, int[] mids) throws Exception {
+        List<int[]> records = new ArrayList<int[]>();
+        for (int mid : mids) {
+            if (_renter.getOrDefault(mid, -1) != cid)
+                return false;
+            records.add(new int[] { RETURN, mid, cid });
+        }
+        commit(records);
+        return true;
+    }
+
+    public synchronized int returnAll(int cid) throws Exception {
+        List<int[]> records = new ArrayList<int[]>();
+        for (int mid : rentals(cid))
+            records.add(new int[] { RETURN, mid, cid });
+        if (!records.isEmpty())
+            commit(records);
+        return records.size();
+    }
+
+    public synchronized boolean choosePlan(int cid, int pid) throws Exception {
+        Customer customer = _customers.get(cid);
+        RentalPlan plan = _plans.get(pid);
+        if (customer == null || plan == null || open(cid) > plan.getMaxMovies())
+            return false;
+        List<int[]> records = new ArrayList<int[]>();
+        records.add(new int[] { PLAN, cid, pid });
+        commit(records);
+        return true;
+    }
+
+    public synchronized void close() throws Exception {
+        _log.close();
+    }
+
+    /**********************************************************/
+
+    private int max_movies(Customer customer) {
+        RentalPlan plan = _plans.get(customer.pid);
+        return plan == null ? 0 : plan.getMaxMovies();
+    }
+
+    private int open(int cid) {
+        TreeSet<Integer> rented = _rented.get(cid);
+        return rented == null ? 0 : rented.size();
+    }
+
+    private void add_customer(int cid, Customer customer) {
+        _customers.put(cid, customer);
+        if (customer.login != null)
+            _logins.put(customer.login, cid);
+    }
+
+    private void commit(List<int[]> records) throws Exception {
+        /* on disk first: a write that fails to reach the file changes nothing */
+        List<int[]> logged = new ArrayList<int[]>(records);
+        logged.add(new int[] { COMMIT, records.size(), 0 });
+        _log.append(logged);
+        for (int[] record : records)
+            apply(record);
+        if (_log.size() > Math.max(CHECKPOINT_BYTES, _image)) {
+            /* the write is durable either way; a failed checkpoint is tried again next time */
+            try {
+                checkpoint();
+            } catch (Exception e) {
+                System.err.println("embedded ledger: could not checkpoint " + _path + ": " + e);
+            }
+        }
+    }
+
+    private void apply(int[] record) {
+        if (record[0] == RENT) {
+            _renter.put(record[1], record[2]);
+            _rented.computeIfAbsent(record[2], cid -> new TreeSet<Integer>()).add(record[1]);
+        } else if (record[0] == RETURN) {
+            _renter.remove(record[1]);
+            TreeSet<Integer> rented = _rented.get(record[2]);
+            if (rented != null) {
+                rented.remove(record[1]);
+                if (rented.isEmpty())
+                    _rented.remove(record[2]);
+            }
+        } else if (record[0] == PLAN) {
+            Customer customer = _customers.get(record[1]);
+            if (customer != null)
+                customer.pid = record[2];
+        }
+    }
+
+    private void replay() throws Exception {
+        /* apply the committed writes after the image, up to the first torn or partial one
+           or the first commit that does not count the records before it */
+        List<int[]> pending = new ArrayList<int[]>();
+        for (int[] record : _log.read()) {
+            if (record[0] != COMMIT) {
+                pending.add(record);
+                continue;
+            }
+            if (record[1] != pending.size())
+                break;
+            for (int[] change : pending)
+                apply(change);
+            pending.clear();
+        }
+    }
+
+    private void checkpoint() throws Exception {
+        /* replace the file with an image of the current state and an empty log; the new
+           file is opened before it takes the old one's place, so if anything fails the
+           old file and log stay in use */
+        File temp = new File(_path.getPath() + ".tmp");
+        int image = write_image(temp);
+        FileChannel channel = new RandomAccessFile(temp, "rw").getChannel();
+        try {
+            Files.move(temp.toPath(), _path.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (Exception e) {
+            channel.close();
+            temp.delete();
+            throw e;
+        }
+        RecordLog old = _log;
+        _log = new RecordLog(channel, HEADER_SIZE + image);
+        _image = image;
+        try {
+            old.close();
+        } catch (Exception ignored) {
+        }
+    }
+
+    private void write_file() throws Exception {
+        File temp = new File(_path.getPath() + ".tmp");
+        write_image(temp);
+        Files.move(temp.toPath(), _path.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private int write_image(File path) throws Exception {
+        /* writes the header and an image of the current state to path, fsynced; returns the image length */
+        ByteArrayOutputStream image = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(image);
+        out.writeInt(_plans.size());
+        for (RentalPlan plan : _plans.values()) {
+            out.writeInt(plan.getPid());
+            write_string(out, plan.getName());
+            out.writeInt(plan.getMaxMovies());
+            out.writeDouble(plan.getFee());
+        }
+        out.writeInt(_customers.size());
+        for (Map.Entry<Integer, Customer> entry : _customers.entrySet()) {
+            Customer customer = entry.getValue();
+            out.writeInt(entry.getKey());
+            write_string(out, customer.login);
+            write_string(out, customer.password);
+            write_string(out, customer.fname);
+            write_string(out, customer.lname);
+            out.writeInt(customer.pid);
+        }
+        out.writeInt(_renter.size());
+        for (Map.Entry<Integer, Integer> entry : _renter.entrySet()) {
+            out.writeInt(entry.getKey());
+            out.writeInt(entry.getValue());
+        }
+        out.close();
+
+        FileOutputStream file = new FileOutputStream(path);
+        DataOutputStream header = new DataOutputStream(file);
+        header.writeInt(MAGIC);
+        header.writeInt(FORMAT);
+        header.writeInt(image.size());
+        image.writeTo(file);
+        file.getChannel().force(false);
+        file.close();
+        return image.size();
+    }
+
+    private void read_image(DataInputStream in) throws Exception {
+        for (int n = in.readInt(); n > 0; n--) {
+            int pid = in.readInt();
+            _plans.put(pid, new RentalPlan(pid, read_string(in), in.readInt(), in.readDouble()));
+        }
+        for (int n = in.readInt(); n > 0; n--) {
+            int cid = in.readInt();
+            Customer customer = new Customer();
+            customer.login = read_string(in);
+            customer.password = read_string(in);
+            customer.fname = read_string(in);
+            customer.lname = read_string(in);
+            customer.pid = in.readInt();
+            add_customer(cid, customer);
+        }
+        for (int n = in.readInt(); n > 0; n--) {
+            int mid = in.readInt();
+            apply(new int[] { RENT, mid, in.readInt() });
+        }
+    }
+
+    /* a null string is written as a false flag, anything else as true and its UTF */
+    private static void write_string(DataOutputStream out, String s) throws Exception {
+        out.writeBoolean(s != null);
+        if (s != null)
+            out.writeUTF(s);
+    }
+
+    private static String read_string(DataInputStream in) throws Exception {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+}
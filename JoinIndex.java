@@ -0,0 +1,218 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * In-heap replacement for the movie_directors x directors and casts x actor
+ * joins, built once from imdb
+ *
+ * Each relation is stored in compressed sparse row form: the people of movie
+ * doc are cols[rows[doc] .. rows[doc + 1]), as indexes into a person table
+ * whose first and last names point into one interned name pool.
+ */
+public class JoinIndex implements MovieGraph {
+
+    private final int[] _movie_ids;
+    private final Relation _directors;
+    private final Relation _actors;
+    private final String[] _names;
+
+    private JoinIndex(int[] movie_ids, Relation directors, Relation actors, String[] names) {
+        _movie_ids = movie_ids;
+        _directors = directors;
+        _actors = actors;
+        _names = names;
+    }
+
+    public static JoinIndex load(Connection imdb) throws Exception {
+        int[] ids = new int[1 << 16];
+        int n = 0;
+        PreparedStatement statement = Metrics.prepare(imdb, "join_index_movies", "SELECT id FROM movie ORDER BY id");
+        ResultSet set = statement.executeQuery();
+        while (set.next()) {
+            if (n == ids.length)
+                ids = Arrays.copyOf(ids, n * 2);
+            ids[n++] = set.getInt(1);
+        }
+        set.close();
+        statement.close();
+        return load(imdb, Arrays.copyOf(ids, n));
+    }
+
+    /* builds the index over the given movie ids, which must be sorted */
+    public static JoinIndex load(Connection imdb, int[] movie_ids) throws Exception {
+        Map<String, Integer> pool = new HashMap<String, Integer>();
+        Relation directors = Relation.load(imdb, "SELECT id, fname, lname FROM directors ORDER BY id",
+                "SELECT mid, did FROM movie_directors ORDER BY mid", movie_ids, pool);
+        Relation actors = Relation.load(imdb, "SELECT id, fname, lname FROM actor ORDER BY id",
+                "SELECT mid, pid FROM casts ORDER BY mid", movie_ids, pool);
+        String[] names = new String[pool.size()];
+        for (Map.Entry<String, Integer> entry : pool.entrySet())
+            names[entry.getValue()] = entry.getKey();
+        return new JoinIndex(movie_ids, directors, actors, names);
+    }
+
+    /**********************************************************/
+    /* MovieGraph */
+
+    public int doc(int mid) {
+        int doc = Arrays.binarySearch(_movie_ids, mid);
+        return doc >= 0 ? doc : -1;
+    }
+
+    public int directorCount(int doc) {
+        return _directors.rows[doc + 1] - _directors.rows[doc];
+    }
+
+    public int director(int doc, int i) {
+        return _directors.cols[_directors.rows[doc] + i];
+    }
+
+    public String directorFirstName(int director) {
+        return _names[_directors.first[director]];
+    }
+
+    public String directorLastName(int director) {
+        return _names[_directors.last[director]];
+    }
+
+    public int actorCount(int doc) {
+        return _actors.rows[doc + 1] - _actors.rows[doc];
+    }
+
+    public int actor(int doc, int i) {
+        return _actors.cols[_actors.rows[doc] + i];
+    }
+
+    public String actorFirstName(int actor) {
+        return _names[_actors.first[actor]];
+    }
+
+    public String actorLastName(int actor) {
+        return _names[_actors.last[actor]];
+    }
+
+    /**********************************************************/
+    /* size */
+
+    public int movieCount() {
+        return _movie_ids.length;
+    }
+
+    public int directorPeople() {
+        return _directors.first.length;
+    }
+
+    public int actorPeople() {
+        return _actors.first.length;
+    }
+
+    public int castRows() {
+        return _actors.cols.length;
+    }
+
+    /* approximate heap bytes: the int arrays plus the pooled strings */
+    public long footprintBytes() {
+        long bytes = 16 + 4L * _movie_ids.length + _directors.bytes() + _actors.bytes() + 16 + 4L * _names.length;
+        for (String name : _names)
+            bytes += 40 + name.length(); /* String + compact Latin-1 byte[] */
+        return bytes;
+    }
+
+    public String footprint() {
+        long bytes = footprintBytes();
+        return String.format("join index: %d movies, %d director rows, %d cast rows, %d distinct names, "
+                + "%.1f MB (%.1f MB per million cast rows)",
+                _movie_ids.length, _directors.cols.length, _actors.cols.length, _names.length,
+                bytes / 1048576.0, castRows() == 0 ? 0.0 : bytes / 1048576.0 / (castRows() / 1e6));
+    }
+
+    Relation directors() {
+        return _directors;
+    }
+
+    Relation actors() {
+        return _actors;
+    }
+
+    /* one person table and its movie -> person CSR arrays */
+    static class Relation {
+        int[] rows;
+        int[] cols;
+        int[] first;
+        int[] last;
+
+        static Relation load(Connection imdb, String people_sql, String pairs_sql, int[] movie_ids,
+                Map<String, Integer> pool) throws Exception {
+            Relation relation = new Relation();
+
+            /* people, in id order, with their names interned */
+            int[] ids = new int[1 << 16];
+            int[] first = new int[1 << 16];
+            int[] last = new int[1 << 16];
+            int n = 0;
+            PreparedStatement statement = Metrics.prepare(imdb, "join_index_people", people_sql);
+            ResultSet set = statement.executeQuery();
+            while (set.next()) {
+                if (n == ids.length) {
+                    ids = Arrays.copyOf(ids, n * 2);
+                    first = Arrays.copyOf(first, n * 2);
+                    last = Arrays.copyOf(last, n * 2);
+                }
+                ids[n] = set.getInt(1);
+                first[n] = intern(pool, set.getString(2));
+                last[n] = intern(pool, set.getString(3));
+                n++;
+            }
+            set.close();
+            statement.close();
+            ids = Arrays.copyOf(ids, n);
+            relation.first = Arrays.copyOf(first, n);
+            relation.last = Arrays.copyOf(last, n);
+
+            /* (mid, person id) pairs ordered by mid; pairs naming an unknown movie
+               or person are dropped, as the SQL joins would drop them */
+            relation.rows = new int[movie_ids.length + 1];
+            int[] cols = new int[1 << 16];
+            int size = 0;
+            int doc = 0;
+            statement = Metrics.prepare(imdb, "join_index_pairs", pairs_sql);
+            set = statement.executeQuery();
+            while (set.next()) {
+                int mid = set.getInt(1);
+                int person = Arrays.binarySearch(ids, set.getInt(2));
+                while (doc < movie_ids.length && movie_ids[doc] < mid)
+                    relation.rows[++doc] = size;
+                if (doc < movie_ids.length && movie_ids[doc] == mid && person >= 0) {
+                    if (size == cols.length)
+                        cols = Arrays.copyOf(cols, size * 2);
+                    cols[size++] = person;
+                }
+            }
+            while (doc < movie_ids.length)
+                relation.rows[++doc] = size;
+            set.close();
+            statement.close();
+            relation.cols = Arrays.copyOf(cols, size);
+            return relation;
+        }
+
+        long bytes() {
+            return 4 * 16 + 4L * (rows.length + cols.length + first.length + last.length);
+        }
+    }
+
+    private static int intern(Map<String, Integer> pool, String name) {
+        /* a NULL name part is kept empty, as in the snapshot */
+        String key = name == null ? "" : name;
+        Integer index = pool.get(key);
+        if (index == null) {
+            index = pool.size();
+            pool.put(key, index);
+        }
+        return index;
+    }
+}
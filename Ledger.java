@@ -0,0 +1,52 @@
+import java.util.List;
+
+/**
+ * Customer side of a Storage: customers, rental plans and open rentals
+ *
+ * Each write is one atomic step that either checks out and changes
+ * everything it was given, or changes nothing and returns false; the
+ * caller reads the ledger again to say why.
+ */
+public interface Ledger {
+
+    /* the cid of the customer with this login and password, or -1 */
+    int login(String login, String password) throws Exception;
+
+    /* name, plan limit and open rentals of cid, or null if there is no such customer */
+    CustomerProfile profile(int cid) throws Exception;
+
+    /* every plan, by pid */
+    List<RentalPlan> plans() throws Exception;
+
+    /* the plan with this pid, or null */
+    default RentalPlan plan(int pid) throws Exception {
+        for (RentalPlan plan : plans()) {
+            if (plan.getPid() == pid)
+                return plan;
+        }
+        return null;
+    }
+
+    /* who rents each of mids, -1 for nobody, in the same order */
+    int[] renters(int[] mids) throws Exception;
+
+    /* the movies cid rents, by id */
+    int[] rentals(int cid) throws Exception;
+
+    /**********************************************************/
+    /* writes */
+
+    /* rents all of mids (distinct) to cid if its plan allows that many more and none is rented */
+    boolean rent(int cid, int[] mids) throws Exception;
+
+    /* returns all of mids (distinct) if cid rents every one of them */
+    boolean giveBack(int cid, int[] mids) throws Exception;
+
+    /* returns everything cid rents; the number of movies returned */
+    int returnAll(int cid) throws Exception;
+
+    /* moves cid to plan pid if pid exists and allows the movies cid rents now */
+    boolean choosePlan(int cid, int pid) throws Exception;
+
+    void close() throws Exception;
+}
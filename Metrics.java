@@ -0,0 +1,312 @@
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.ObjectName;
+
+/**
+ * Process-wide call counts, latency histograms, row counts, rollbacks and
+ * retried conflicts for every prepared statement and transaction,
+ * and hit rates of its caches
+ *
+ * Registered with the platform MBean server as FastSearch:type=Metrics.
+ */
+public class Metrics implements MetricsMBean {
+
+    private static final Metrics INSTANCE = new Metrics();
+    private static volatile boolean registered;
+
+    private final Map<String, Stat> _statements = new ConcurrentHashMap<String, Stat>();
+    private final Map<String, Stat> _transactions = new ConcurrentHashMap<String, Stat>();
+    private final Map<String, CacheStat> _caches = new ConcurrentHashMap<String, CacheStat>();
+
+    private Metrics() {
+    }
+
+    /* registers the MBean the first time metrics are switched on */
+    public static synchronized void enable() throws Exception {
+        if (registered)
+            return;
+        ManagementFactory.getPlatformMBeanServer().registerMBean(INSTANCE,
+                new ObjectName("FastSearch:type=Metrics"));
+        registered = true;
+    }
+
+    public static boolean enabled() {
+        return registered;
+    }
+
+    /**********************************************************/
+    /* recording */
+
+    /* prepares sql on conn, recording its calls under name when metrics are on */
+    public static PreparedStatement prepare(Connection conn, String name, String sql) throws Exception {
+        PreparedStatement statement = conn.prepareStatement(sql);
+        return registered ? instrument(name, statement) : statement;
+    }
+
+    /* wraps a prepared statement so its executions and result rows are recorded under name */
+    public static PreparedStatement instrument(String name, PreparedStatement statement) {
+        Stat stat = stat(INSTANCE._statements, name);
+        return (PreparedStatement) Proxy.newProxyInstance(Metrics.class.getClassLoader(),
+                new Class<?>[] { PreparedStatement.class },
+                new StatementHandler(statement, stat));
+    }
+
+    public static long start() {
+        return registered ? System.nanoTime() : 0;
+    }
+
+    /* records one finished transaction that began at start() */
+    public static void transaction(String name, long start) {
+        if (registered)
+            stat(INSTANCE._transactions, name).record(System.nanoTime() - start);
+    }
+
+    public static void rollback(String transaction) {
+        if (registered)
+            stat(INSTANCE._transactions, transaction).rollbacks.increment();
+    }
+
+    public static void cacheHit(String cache) {
+        if (registered)
+            cache(cache).hits.increment();
+    }
+
+    public static void cacheMiss(String cache) {
+        if (registered)
+            cache(cache).misses.increment();
+    }
+
+    public static void cacheEviction(String cache) {
+        if (registered)
+            cache(cache).evictions.increment();
+    }
+
+    /* a serialization failure or deadlock that made the ledger retry the transaction */
+    public static void conflict(String transaction) {
+        if (registered)
+            stat(INSTANCE._transactions, transaction).conflicts.increment();
+    }
+
+    public static String dump() {
+        return INSTANCE.getSnapshot();
+    }
+
+    private static Stat stat(Map<String, Stat> stats, String name) {
+        Stat stat = stats.get(name);
+        if (stat == null) {
+            stats.putIfAbsent(name, new Stat());
+            stat = stats.get(name);
+        }
+        return stat;
+    }
+
+    private static CacheStat cache(String name) {
+        CacheStat stat = INSTANCE._caches.get(name);
+        if (stat == null) {
+            INSTANCE._caches.putIfAbsent(name, new CacheStat());
+            stat = INSTANCE._caches.get(name);
+        }
+        return stat;
+    }
+
+    /**********************************************************/
+    /* MetricsMBean */
+
+    public String getSnapshot() {
+        StringBuilder text = new StringBuilder();
+        text.append(String.format("%-40s %9s %9s %9s %9s %9s %9s %9s %10s%n",
+                "name", "calls", "rollback", "conflict", "p50 us", "p90 us", "p99 us", "max us", "rows"));
+        append(text, new TreeMap<String, Stat>(_transactions));
+        append(text, new TreeMap<String, Stat>(_statements));
+        if (!_caches.isEmpty()) {
+            text.append(String.format("%n%-40s %12s %12s %9s %12s%n",
+                    "cache", "hits", "misses", "hit %", "evictions"));
+            for (Map.Entry<String, CacheStat> entry : new TreeMap<String, CacheStat>(_caches).entrySet()) {
+                CacheStat stat = entry.getValue();
+                long hits = stat.hits.sum();
+                long lookups = hits + stat.misses.sum();
+                text.append(String.format("%-40s %12d %12d %9.1f %12d%n", entry.getKey(), hits,
+                        stat.misses.sum(), lookups == 0 ? 0.0 : 100.0 * hits / lookups,
+                        stat.evictions.sum()));
+            }
+        }
+        return text.toString();
+    }
+
+    public void reset() {
+        for (Stat stat : _transactions.values())
+            stat.reset();
+        for (Stat stat : _statements.values())
+            stat.reset();
+        for (CacheStat stat : _caches.values())
+            stat.reset();
+    }
+
+    private static void append(StringBuilder text, Map<String, Stat> stats) {
+        for (Map.Entry<String, Stat> entry : stats.entrySet()) {
+            Stat stat = entry.getValue();
+            Histogram latency = stat.latency;
+            text.append(String.format("%-40s %9d %9d %9d %9.1f %9.1f %9.1f %9.1f %10d%n",
+                    entry.getKey(), stat.calls.sum(), stat.rollbacks.sum(), stat.conflicts.sum(),
+                    latency.percentile(0.50) / 1e3, latency.percentile(0.90) / 1e3,
+                    latency.percentile(0.99) / 1e3, latency.percentile(1.0) / 1e3,
+                    stat.rows.sum()));
+        }
+    }
+
+    /**********************************************************/
+
+    static class Stat {
+        final LongAdder calls = new LongAdder();
+        final LongAdder rows = new LongAdder();
+        final LongAdder rollbacks = new LongAdder();
+        final LongAdder conflicts = new LongAdder();
+        final Histogram latency = new Histogram();
+
+        void record(long nanos) {
+            calls.increment();
+            latency.record(nanos);
+        }
+
+        void reset() {
+            calls.reset();
+            rows.reset();
+            rollbacks.reset();
+            conflicts.reset();
+            latency.reset();
+        }
+    }
+
+    static class CacheStat {
+        final LongAdder hits = new LongAdder();
+        final LongAdder misses = new LongAdder();
+        final LongAdder evictions = new LongAdder();
+
+        void reset() {
+            hits.reset();
+            misses.reset();
+            evictions.reset();
+        }
+    }
+
+    /* log-linear histogram of nanosecond values: 16 buckets per power of two,
+       so any recorded value is reported within about 6% */
+    static class Histogram {
+        private static final int SUB_BITS = 4;
+        private static final int SUB_COUNT = 1 << SUB_BITS;
+
+        private final AtomicLongArray _counts = new AtomicLongArray(64 * SUB_COUNT);
+
+        void record(long value) {
+            _counts.incrementAndGet(index(Math.max(0, value)));
+        }
+
+        /* lower bound of the bucket holding the p-th value, 0 when empty */
+        long percentile(double p) {
+            long total = 0;
+            for (int i = 0; i < _counts.length(); i++)
+                total += _counts.get(i);
+            if (total == 0)
+                return 0;
+            long rank = Math.max(1, (long) Math.ceil(p * total));
+            long seen = 0;
+            for (int i = 0; i < _counts.length(); i++) {
+                seen += _counts.get(i);
+                if (seen >= rank)
+                    return value(i);
+            }
+            return value(_counts.length() - 1);
+        }
+
+        void reset() {
+            for (int i = 0; i < _counts.length(); i++)
+                _counts.set(i, 0);
+        }
+
+        private static int index(long value) {
+            if (value < SUB_COUNT)
+                return (int) value;
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_COUNT - 1);
+            return (exponent - SUB_BITS + 1) * SUB_COUNT + sub;
+        }
+
+        private static long value(int index) {
+            if (index < SUB_COUNT)
+                return index;
+            int exponent = index / SUB_COUNT + SUB_BITS - 1;
+            long sub = index % SUB_COUNT;
+            return (1L << exponent) | (sub << (exponent - SUB_BITS));
+        }
+    }
+
+    /* times execute* calls and counts the rows their result sets return or their updates change */
+    private static class StatementHandler implements InvocationHandler {
+        private final PreparedStatement _statement;
+        private final Stat _stat;
+
+        StatementHandler(PreparedStatement statement, Stat stat) {
+            _statement = statement;
+            _stat = stat;
+        }
+
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            if (!method.getName().startsWith("execute"))
+                return call(_statement, method, args);
+            long start = System.nanoTime();
+            Object result = call(_statement, method, args);
+            _stat.record(System.nanoTime() - start);
+            if (result instanceof ResultSet) {
+                return Proxy.newProxyInstance(Metrics.class.getClassLoader(),
+                        new Class<?>[] { ResultSet.class },
+                        new ResultSetHandler((ResultSet) result, _stat));
+            }
+            if (result instanceof Integer)
+                _stat.rows.add((Integer) result);
+            if (result instanceof int[]) {
+                /* executeBatch: a count per statement, or SUCCESS_NO_INFO for a row of unknown count */
+                for (int count : (int[]) result)
+                    _stat.rows.add(count == Statement.SUCCESS_NO_INFO ? 1 : Math.max(count, 0));
+            }
+            return result;
+        }
+    }
+
+    private static class ResultSetHandler implements InvocationHandler {
+        private final ResultSet _set;
+        private final Stat _stat;
+
+        ResultSetHandler(ResultSet set, Stat stat) {
+            _set = set;
+            _stat = stat;
+        }
+
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            Object result = call(_set, method, args);
+            if (Boolean.TRUE.equals(result) && method.getName().equals("next"))
+                _stat.rows.increment();
+            return result;
+        }
+    }
+
+    private static Object call(Object target, Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+}
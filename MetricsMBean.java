@@ -0,0 +1,10 @@
+/**
+ * JMX view of Metrics
+ */
+public interface MetricsMBean {
+
+    /* text table of every transaction and prepared statement */
+    String getSnapshot();
+
+    void reset();
+}
@@ -0,0 +1,63 @@
+import java.util.List;
+
+/**
+ * Immutable name, year, directors and actors of one movie, as cached between searches
+ */
+public class MovieDetails {
+
+    private final int _mid;
+    private final String _name;
+    private final String _year;
+    private final String[] _directors;
+    private final String[] _actor_first_names;
+    private final String[] _actor_last_names;
+
+    /* directors as "lname fname"; actor first and last names at matching positions */
+    public MovieDetails(int mid, String name, String year, List<String> directors,
+            List<String> actor_first_names, List<String> actor_last_names) {
+        _mid = mid;
+        _name = name;
+        _year = year;
+        _directors = directors.toArray(new String[directors.size()]);
+        _actor_first_names = actor_first_names.toArray(new String[actor_first_names.size()]);
+        _actor_last_names = actor_last_names.toArray(new String[actor_last_names.size()]);
+    }
+
+    public int getMid() {
+        return _mid;
+    }
+
+    public String getName() {
+        return _name;
+    }
+
+    public String getYear() {
+        return _year;
+    }
+
+    /* add the directors and actors to movie, formatted as the SQL paths print them */
+    public void fill(MovieHit movie, boolean actor_first_name_first) {
+        for (String director : _directors)
+            movie.getDirectors().add(director);
+        for (int i = 0; i < _actor_first_names.length; i++) {
+            if (actor_first_name_first)
+                movie.getActors().add(MovieHit.person(_actor_first_names[i], _actor_last_names[i]));
+            else
+                movie.getActors().add(MovieHit.person(_actor_last_names[i], _actor_first_names[i]));
+        }
+    }
+
+    /* approximate heap bytes, used as the cache weight */
+    public int weight() {
+        int bytes = 32 + 3 * 16 + size(_name) + size(_year);
+        for (String director : _directors)
+            bytes += 4 + size(director);
+        for (int i = 0; i < _actor_first_names.length; i++)
+            bytes += 8 + size(_actor_first_names[i]) + size(_actor_last_names[i]);
+        return bytes;
+    }
+
+    private static int size(String s) {
+        return s == null ? 0 : 40 + s.length();
+    }
+}
@@ -0,0 +1,45 @@
+/**
+ * Directors and actors of each movie, addressed by doc (position in id order)
+ *
+ * A name part that is NULL in imdb comes back empty.
+ */
+public interface MovieGraph {
+
+    /* the doc of movie id mid, or -1 */
+    int doc(int mid);
+
+    int directorCount(int doc);
+
+    /* the i-th director of doc, as an index into the director names */
+    int director(int doc, int i);
+
+    String directorFirstName(int director);
+
+    String directorLastName(int director);
+
+    int actorCount(int doc);
+
+    int actor(int doc, int i);
+
+    String actorFirstName(int actor);
+
+    String actorLastName(int actor);
+
+    /* add the directors and actors of doc to movie, formatted as the SQL paths print them:
+       directors "last first", actors too unless actorFirstNameFirst */
+    default void addPeople(MovieHit movie, int doc, boolean actorFirstNameFirst) {
+        if (doc < 0)
+            return;
+        for (int i = 0; i < directorCount(doc); i++) {
+            int director = director(doc, i);
+            movie.getDirectors().add(MovieHit.person(directorLastName(director), directorFirstName(director)));
+        }
+        for (int i = 0; i < actorCount(doc); i++) {
+            int actor = actor(doc, i);
+            if (actorFirstNameFirst)
+                movie.getActors().add(MovieHit.person(actorFirstName(actor), actorLastName(actor)));
+            else
+                movie.getActors().add(MovieHit.person(actorLastName(actor), actorFirstName(actor)));
+        }
+    }
+}
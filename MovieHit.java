@@ -0,0 +1,83 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * One movie returned by a title search, with its directors, actors and availability
+ */
+public class MovieHit {
+
+    public enum Status {
+        AVAILABLE("AVAILABLE"),
+        YOU_HAVE_IT("YOU HAVE IT"),
+        UNAVAILABLE("UNAVAILABLE");
+
+        private final String _label;
+
+        Status(String label) {
+            _label = label;
+        }
+
+        public String label() {
+            return _label;
+        }
+
+        /* status of a movie for customer cid, given who rents it (-1 for nobody) */
+        public static Status of(int renter, int cid) {
+            if (renter == -1)
+                return AVAILABLE;
+            return renter == cid ? YOU_HAVE_IT : UNAVAILABLE;
+        }
+    }
+
+    private final int _mid;
+    private final String _name;
+    private final String _year;
+    private final List<String> _directors = new ArrayList<String>();
+    private final List<String> _actors = new ArrayList<String>();
+    private Status _status;
+
+    /* a director or actor name as every engine prints it: the parts that are neither
+       NULL nor empty, joined by one space, the way the aggregate SQL builds it */
+    public static String person(String first, String second) {
+        boolean has_first = first != null && !first.isEmpty();
+        boolean has_second = second != null && !second.isEmpty();
+        if (has_first && has_second)
+            return first + " " + second;
+        return has_first ? first : has_second ? second : "";
+    }
+
+    public MovieHit(int mid, String name, String year) {
+        _mid = mid;
+        _name = name;
+        _year = year;
+    }
+
+    public int getMid() {
+        return _mid;
+    }
+
+    public String getName() {
+        return _name;
+    }
+
+    public String getYear() {
+        return _year;
+    }
+
+    /* director and actor names, in the order the search printed them */
+    public List<String> getDirectors() {
+        return _directors;
+    }
+
+    public List<String> getActors() {
+        return _actors;
+    }
+
+    public Status getStatus() {
+        return _status;
+    }
+
+    void setStatus(Status status) {
+        _status = status;
+    }
+}
@@ -0,0 +1,9 @@
+import java.util.List;
+
+/**
+ * Receives search results a chunk at a time, in movie id order
+ */
+public interface MovieSink {
+
+    void accept(List<MovieHit> movies) throws Exception;
+}
@@ -0,0 +1,41 @@
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Immutable snapshot of the RentalPlans table, looked up by pid
+ */
+public class PlanCache {
+
+    /* pids in ascending order, with the plan of each pid at the same position */
+    private final int[] _pids;
+    private final RentalPlan[] _plans;
+    private final List<RentalPlan> _all;
+    private final long _loaded_at;
+
+    public PlanCache(List<RentalPlan> plans) {
+        RentalPlan[] sorted = plans.toArray(new RentalPlan[plans.size()]);
+        Arrays.sort(sorted, (a, b) -> Integer.compare(a.getPid(), b.getPid()));
+        _pids = new int[sorted.length];
+        for (int i = 0; i < sorted.length; i++)
+            _pids[i] = sorted[i].getPid();
+        _plans = sorted;
+        _all = Collections.unmodifiableList(Arrays.asList(sorted));
+        _loaded_at = System.nanoTime();
+    }
+
+    /* the plan with this pid, or null */
+    public RentalPlan get(int pid) {
+        int i = Arrays.binarySearch(_pids, pid);
+        return i >= 0 ? _plans[i] : null;
+    }
+
+    /* every plan, by pid */
+    public List<RentalPlan> all() {
+        return _all;
+    }
+
+    public boolean olderThan(long nanos) {
+        return System.nanoTime() - _loaded_at > nanos;
+    }
+}
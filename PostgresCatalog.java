@@ -0,0 +1,742 @@
+import java.io.File;
+import java.sql.Array;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Catalog read from the imdb database
+ *
+ * search is the id-ordered title scan, with the directors and actors of
+ * each chunk read with one query each, or from the movie details cache.
+ * fastSearch answers from the title index or the snapshot when the title
+ * is a plain substring, and otherwise runs fastSearchEngine: "cursors"
+ * merges three id-ordered scans, "aggregate" runs one statement with
+ * array_agg, and "parallel" runs the three scans at once on connections of
+ * their own.  Both remember title matches in the search result cache.
+ *
+ * The title index, snapshot, join index and caches are built by the first
+ * catalog opened and shared by every catalog in the process; the
+ * connections and statements are this catalog's own, so one catalog
+ * serves one thread at a time.
+ */
+public class PostgresCatalog implements Catalog {
+
+    private String _search_sql = "SELECT * FROM movie WHERE name ilike ? ORDER BY id";
+    private PreparedStatement _search_statement;
+
+    // One page of a search, continuing after the last movie id of the previous page
+    private String _search_page_sql = "SELECT * FROM movie WHERE name ilike ? AND id > ? ORDER BY id LIMIT ?";
+    private PreparedStatement _search_page_statement;
+
+    private String _director_fast_sql = "SELECT x.id, z.* "
+                     + "FROM movie x, movie_directors y, directors z "
+                     + "WHERE upper(x.name) like upper(?) and x.id = y.mid and y.did = z.id "
+                     + "ORDER BY x.id";
+    private PreparedStatement _director_fast_statement;
+
+    private String _actor_fast_sql = "SELECT x.id, z.* "
+                     + "FROM movie x, casts y, actor z "
+                     + "WHERE upper(x.name) like upper(?) and x.id = y.mid and y.pid = z.id "
+                     + "ORDER BY x.id";
+    private PreparedStatement _actor_fast_statement;
+
+    /* single-statement fastsearch: the title predicate is evaluated once in the CTE,
+       and each movie comes back as one row with its directors and actors aggregated */
+    private String _fast_aggregate_sql = "WITH m AS (SELECT id, name, year FROM movie WHERE upper(name) like upper(?)), "
+                     + "d AS (SELECT y.mid, array_agg(concat_ws(' ', nullif(z.lname, ''), nullif(z.fname, ''))) AS names "
+                     + "FROM m, movie_directors y, directors z WHERE m.id = y.mid and y.did = z.id GROUP BY y.mid), "
+                     + "a AS (SELECT y.mid, array_agg(concat_ws(' ', nullif(z.lname, ''), nullif(z.fname, ''))) AS names "
+                     + "FROM m, casts y, actor z WHERE m.id = y.mid and y.pid = z.id GROUP BY y.mid) "
+                     + "SELECT m.id, m.name, m.year, d.names, a.names "
+                     + "FROM m LEFT JOIN d ON d.mid = m.id LEFT JOIN a ON a.mid = m.id "
+                     + "ORDER BY m.id";
+    private PreparedStatement _fast_aggregate_statement;
+
+    /* joins for an explicit list of movie ids, used when titles come from the title index */
+    private String _director_mids_sql = "SELECT x.mid, y.* "
+                     + "FROM movie_directors x, directors y "
+                     + "WHERE x.mid = ANY(?) and x.did = y.id "
+                     + "ORDER BY x.mid";
+    private PreparedStatement _director_mids_statement;
+
+    private String _actor_mids_sql = "SELECT x.mid, y.* "
+                     + "FROM casts x, actor y "
+                     + "WHERE x.mid = ANY(?) and x.pid = y.id "
+                     + "ORDER BY x.mid";
+    private PreparedStatement _actor_mids_statement;
+
+    //check if the given movie id is valid
+    private String _valid_movie_sql = "SELECT name FROM movie WHERE id = ?";
+    private PreparedStatement _valid_movie_statement;
+
+    //query to retrieve the names of a list of movies by id
+    private String _movie_names_sql = "SELECT id, name FROM movie WHERE id = ANY(?) ORDER BY id";
+    private PreparedStatement _movie_names_statement;
+
+    private final Connection _imdb;
+
+    // Extra imdb connections for the director and actor scans of the parallel engine
+    private Connection _imdb_directors;
+    private Connection _imdb_actors;
+    private PreparedStatement _director_parallel_statement;
+    private PreparedStatement _actor_parallel_statement;
+
+    // Rows per round trip for the title scans; 0 lets the driver read whole
+    // results into memory, anything else streams them through a cursor
+    private final int _fetch_size;
+
+    // "cursors", "aggregate" or "parallel", see fastSearch
+    private final String _engine;
+
+    // In-memory title index, only built when useTitleIndex is set in dbconn.config
+    private static TitleIndex _title_index;
+
+    // Memory-mapped imdb snapshot, only opened when snapshotFile is set in dbconn.config;
+    // when present it answers fastsearch and director/actor hydration without imdb queries
+    private static SearchSnapshot _snapshot;
+
+    // In-heap CSR copy of the director and cast joins, only built when useJoinIndex is set in
+    // dbconn.config; used for director/actor hydration when there is no snapshot
+    private static JoinIndex _join_index;
+
+    // Names, years, directors and actors of recently searched movies; sized by movieCacheMB
+    // in dbconn.config, 0 turns the cache off
+    private static TinyLfuCache<Integer, MovieDetails> _movie_cache;
+
+    // Title matches of recent search patterns, keyed by the lower-cased pattern and bounded
+    // by searchCacheIds, the total number of movie ids held plus one per entry, so that
+    // patterns with no matches still count; 0 turns it off
+    private static TinyLfuCache<String, TitleMatches> _search_cache;
+
+    // set once the caches above have been created from the config of the first catalog
+    private static boolean _caches_configured;
+
+    // Every movie id in imdb, loaded once per process so rent can check a movie
+    // exists without a round trip; ids missing from it are still checked in imdb
+    private static BitSet _movie_bitmap;
+
+    // Runs the scans of the parallel engine, created by its first scan; a blocked JDBC call
+    // only parks a virtual thread
+    private static ExecutorService _scan_executor;
+
+    private PostgresCatalog(Properties config) throws Exception {
+        String url = config.getProperty("imdbUrl");
+        String user = config.getProperty("postgreSQLUser");
+        String password = config.getProperty("postgreSQLPassword");
+        _fetch_size = Integer.parseInt(config.getProperty("fetchSize", "0").trim());
+        _engine = config.getProperty("fastSearchEngine", "cursors").trim();
+
+        _imdb = DriverManager.getConnection(url, user, password);
+        if (_engine.equals("parallel")) {
+            _imdb_directors = DriverManager.getConnection(url, user, password);
+            _imdb_actors = DriverManager.getConnection(url, user, password);
+        }
+
+        /* nothing writes to imdb, so streamed searches can run read-only */
+        if (_fetch_size > 0) {
+            _imdb.setReadOnly(true);
+            if (_imdb_directors != null) {
+                _imdb_directors.setReadOnly(true);
+                _imdb_actors.setReadOnly(true);
+            }
+        }
+    }
+
+    /* connects to imdbUrl in config and prepares the statements; the first catalog of the
+       process also builds whatever config asks for from the title index down */
+    public static PostgresCatalog open(Properties config) throws Exception {
+        Class.forName(config.getProperty("postgreSQLDriver"));
+        PostgresCatalog catalog = new PostgresCatalog(config);
+        try {
+            catalog.prepare(config);
+        } catch (Exception e) {
+            catalog.close();
+            throw e;
+        }
+        return catalog;
+    }
+
+    private void prepare(Properties config) throws Exception {
+        _search_statement = Metrics.prepare(_imdb, "search", _search_sql);
+        _search_page_statement = Metrics.prepare(_imdb, "search_page", _search_page_sql);
+        _director_fast_statement = Metrics.prepare(_imdb, "director_fast", _director_fast_sql);
+        _actor_fast_statement = Metrics.prepare(_imdb, "actor_fast", _actor_fast_sql);
+        _fast_aggregate_statement = Metrics.prepare(_imdb, "fast_aggregate", _fast_aggregate_sql);
+        if (_imdb_directors != null) {
+            _director_parallel_statement = Metrics.prepare(_imdb_directors, "director_parallel", _director_fast_sql);
+            _actor_parallel_statement = Metrics.prepare(_imdb_actors, "actor_parallel", _actor_fast_sql);
+        }
+        _director_mids_statement = Metrics.prepare(_imdb, "director_mids", _director_mids_sql);
+        _actor_mids_statement = Metrics.prepare(_imdb, "actor_mids", _actor_mids_sql);
+        _valid_movie_statement = Metrics.prepare(_imdb, "valid_movie", _valid_movie_sql);
+        _movie_names_statement = Metrics.prepare(_imdb, "movie_names", _movie_names_sql);
+        if (_fetch_size > 0) {
+            _search_statement.setFetchSize(_fetch_size);
+            _director_fast_statement.setFetchSize(_fetch_size);
+            _actor_fast_statement.setFetchSize(_fetch_size);
+            _fast_aggregate_statement.setFetchSize(_fetch_size);
+            if (_imdb_directors != null) {
+                _director_parallel_statement.setFetchSize(_fetch_size);
+                _actor_parallel_statement.setFetchSize(_fetch_size);
+            }
+        }
+
+        configure_caches(config);
+        if (Boolean.parseBoolean(config.getProperty("useTitleIndex", "false")))
+            load_title_index(_imdb);
+        String snapshot_file = config.getProperty("snapshotFile", "").trim();
+        if (snapshot_file.length() > 0)
+            open_snapshot(_imdb, new File(snapshot_file));
+        else if (Boolean.parseBoolean(config.getProperty("useJoinIndex", "false")))
+            load_join_index(_imdb);
+    }
+
+    private static synchronized void configure_caches(Properties config) {
+        /* created from the config of the first catalog, shared by every later one */
+        if (_caches_configured)
+            return;
+        long movie_cache_mb = Long.parseLong(config.getProperty("movieCacheMB", "32").trim());
+        if (movie_cache_mb > 0)
+            _movie_cache = new TinyLfuCache<Integer, MovieDetails>("movie_details", movie_cache_mb << 20, MovieDetails::weight);
+        int search_cache_ids = Integer.parseInt(config.getProperty("searchCacheIds", "200000").trim());
+        if (search_cache_ids > 0)
+            _search_cache = new TinyLfuCache<String, TitleMatches>("search_results", search_cache_ids, matches -> 1 + matches.size());
+        _caches_configured = true;
+    }
+
+    private static synchronized void open_snapshot(Connection imdb, File path) throws Exception {
+        /* mapped by the first catalog; rewritten from imdb first when its version stamp is stale */
+        if (_snapshot == null)
+            _snapshot = SearchSnapshot.open(imdb, path);
+    }
+
+    private static synchronized void load_join_index(Connection imdb) throws Exception {
+        /* built by the first catalog to prepare its statements */
+        if (_join_index == null)
+            _join_index = JoinIndex.load(imdb);
+    }
+
+    private static synchronized void load_title_index(Connection imdb) throws Exception {
+        /* built by the first catalog to prepare its statements */
+        if (_title_index == null)
+            _title_index = TitleIndex.load(imdb);
+    }
+
+    private static MovieGraph graph() {
+        /* where directors and actors are read from instead of imdb, or null */
+        return _snapshot != null ? _snapshot : _join_index;
+    }
+
+    public static String join_index_footprint() {
+        /* size report of the join index, null when it is not loaded */
+        return _join_index == null ? null : _join_index.footprint();
+    }
+
+    public void close() throws Exception {
+        /* after a failed open only some of them exist */
+        _imdb.close();
+        if (_imdb_directors != null)
+            _imdb_directors.close();
+        if (_imdb_actors != null)
+            _imdb_actors.close();
+    }
+
+    /**********************************************************/
+    /* movies */
+
+    public String name(int mid) throws Exception {
+        _valid_movie_statement.clearParameters();
+        _valid_movie_statement.setInt(1, mid);
+        ResultSet valid_set = _valid_movie_statement.executeQuery();
+        String name = valid_set.next() ? valid_set.getString(1) : null;
+        valid_set.close();
+        return name;
+    }
+
+    public boolean exists(int mid) throws Exception {
+        /* movies are not deleted from imdb, so an id in the bitmap exists; one that is not
+           in it may have been added since it was loaded, so that case asks imdb */
+        BitSet ids = movie_bitmap(_imdb);
+        if (mid >= 0 && ids.get(mid))
+            return true;
+        return name(mid) != null;
+    }
+
+    private static synchronized BitSet movie_bitmap(Connection imdb) throws Exception {
+        /* loaded by the first rent in the process, never modified afterwards */
+        if (_movie_bitmap == null) {
+            BitSet ids = new BitSet();
+            PreparedStatement statement = Metrics.prepare(imdb, "movie_bitmap", "SELECT id FROM movie");
+            ResultSet set = statement.executeQuery();
+            while (set.next()) {
+                if (set.getInt(1) >= 0)
+                    ids.set(set.getInt(1));
+            }
+            set.close();
+            statement.close();
+            _movie_bitmap = ids;
+        }
+        return _movie_bitmap;
+    }
+
+    public String[] names(int[] mids) throws Exception {
+        /* from the snapshot or movie cache, and the rest with one imdb query */
+        String[] names = new String[mids.length];
+        List<Integer> missing = new ArrayList<Integer>();
+        for (int i = 0; i < names.length; i++) {
+            int mid = mids[i];
+            if (_snapshot != null && _snapshot.doc(mid) >= 0) {
+                names[i] = _snapshot.title(_snapshot.doc(mid));
+                continue;
+            }
+            MovieDetails details = _movie_cache == null ? null : _movie_cache.get(mid);
+            if (details != null)
+                names[i] = details.getName();
+            else
+                missing.add(mid);
+        }
+        if (missing.isEmpty())
+            return names;
+
+        _movie_names_statement.clearParameters();
+        _movie_names_statement.setArray(1, _imdb.createArrayOf("int4", missing.toArray()));
+        ResultSet name_set = _movie_names_statement.executeQuery();
+        /* the query is ordered by mid, so look each row up rather than assume mids is */
+        Map<Integer, String> found = new HashMap<Integer, String>();
+        while (name_set.next())
+            found.put(name_set.getInt(1), name_set.getString(2));
+        name_set.close();
+        for (int i = 0; i < names.length; i++) {
+            if (names[i] == null)
+                names[i] = found.get(mids[i]);
+        }
+        return names;
+    }
+
+    /**********************************************************/
+    /* search */
+
+    public void search(String title, boolean actorFirstNameFirst, int chunk, MovieSink sink) throws Exception {
+        /* the title scan, with the directors and actors of each chunk read at once */
+        TitleMatches cached = cached_titles(title);
+        if (cached != null) {
+            search_cached(cached, actorFirstNameFirst, chunk, sink);
+            return;
+        }
+        TitleMatches.Recorder recorder = _search_cache == null ? null : new TitleMatches.Recorder((int) _search_cache.maxEntryWeight() - 1);
+        begin_scan();
+        try {
+            _search_statement.clearParameters();
+            _search_statement.setString(1, '%' + title + '%');
+            ResultSet movie_set = _search_statement.executeQuery();
+
+            boolean more_movies = movie_set.next();
+            while (more_movies) {
+                List<MovieHit> movies = new ArrayList<MovieHit>();
+                while (more_movies && movies.size() < chunk) {
+                    movies.add(new MovieHit(movie_set.getInt(1), movie_set.getString(2),
+                            movie_set.getString(3)));
+                    more_movies = movie_set.next();
+                }
+                add_people(movies, actorFirstNameFirst);
+                if (recorder != null)
+                    recorder.record(movies);
+                sink.accept(movies);
+            }
+            movie_set.close();
+        } finally {
+            end_scan();
+        }
+        remember_titles(title, recorder);
+    }
+
+    public List<MovieHit> page(String title, int afterMid, int limit, int chunk) throws Exception {
+        /* keyset paging on the movie id, then the same hydration as search */
+        _search_page_statement.clearParameters();
+        _search_page_statement.setString(1, '%' + title + '%');
+        _search_page_statement.setInt(2, afterMid);
+        _search_page_statement.setInt(3, limit);
+        ResultSet movie_set = _search_page_statement.executeQuery();
+        List<MovieHit> movies = new ArrayList<MovieHit>();
+        while (movie_set.next()) {
+            movies.add(new MovieHit(movie_set.getInt(1), movie_set.getString(2),
+                    movie_set.getString(3)));
+        }
+        movie_set.close();
+        for (int first = 0; first < movies.size(); first += chunk)
+            add_people(movies.subList(first, Math.min(movies.size(), first + chunk)), true);
+        return movies;
+    }
+
+    public void fastSearch(String title, int chunk, MovieSink sink) throws Exception {
+        /* the title index answers from trigrams; the snapshot scans every title */
+        if (_title_index != null && TitleIndex.isPlainSubstring(title)) {
+            search_indexed(title, chunk, sink);
+            return;
+        }
+        if (_snapshot != null && TitleIndex.isPlainSubstring(title)) {
+            search_snapshot(title, chunk, sink);
+            return;
+        }
+        TitleMatches cached = cached_titles(title);
+        if (cached != null) {
+            search_cached(cached, false, chunk, sink);
+            return;
+        }
+
+        TitleMatches.Recorder recorder = _search_cache == null ? null : new TitleMatches.Recorder((int) _search_cache.maxEntryWeight() - 1);
+        MovieSink target = recorder == null ? sink : movies -> {
+            recorder.record(movies);
+            sink.accept(movies);
+        };
+        if (_engine.equals("aggregate"))
+            aggregated(title, chunk, target);
+        else if (_imdb_directors != null)
+            parallel(title, chunk, target);
+        else
+            cursors(title, chunk, target);
+        remember_titles(title, recorder);
+    }
+
+    private void add_people(List<MovieHit> movies, boolean actor_first_name_first) throws Exception {
+        /* fill in the directors and actors of movies (sorted by id) */
+        MovieGraph graph = graph();
+        if (graph != null) {
+            for (MovieHit movie : movies)
+                graph.addPeople(movie, graph.doc(movie.getMid()), actor_first_name_first);
+        } else {
+            cached_people(movies, actor_first_name_first);
+        }
+    }
+
+    private void cached_people(List<MovieHit> movies, boolean actor_first_name_first) throws Exception {
+        /* add the directors and actors of movies (sorted by id) from the movie cache; the
+           misses are read with one imdb query each for directors and actors, then cached */
+        List<MovieHit> missing = new ArrayList<MovieHit>();
+        for (MovieHit movie : movies) {
+            MovieDetails details = _movie_cache == null ? null : _movie_cache.get(movie.getMid());
+            if (details != null)
+                details.fill(movie, actor_first_name_first);
+            else
+                missing.add(movie);
+        }
+        if (missing.isEmpty())
+            return;
+
+        Integer[] mids = new Integer[missing.size()];
+        for (int i = 0; i < mids.length; i++)
+            mids[i] = missing.get(i).getMid();
+        Array imdb_mids = _imdb.createArrayOf("int4", mids);
+        _director_mids_statement.clearParameters();
+        _director_mids_statement.setArray(1, imdb_mids);
+        ResultSet director_set = _director_mids_statement.executeQuery();
+
+        _actor_mids_statement.clearParameters();
+        _actor_mids_statement.setArray(1, imdb_mids);
+        ResultSet actor_set = _actor_mids_statement.executeQuery();
+
+        boolean more_directors = director_set.next();
+        boolean more_actors = actor_set.next();
+        for (MovieHit movie : missing) {
+            int mid = movie.getMid();
+            more_directors = merge_directors(director_set, more_directors, movie);
+
+            List<String> first_names = new ArrayList<String>();
+            List<String> last_names = new ArrayList<String>();
+            while (more_actors && actor_set.getInt(1) < mid)
+                more_actors = actor_set.next();
+            while (more_actors && actor_set.getInt(1) == mid) {
+                String fname = actor_set.getString("fname");
+                String lname = actor_set.getString("lname");
+                first_names.add(fname);
+                last_names.add(lname);
+                movie.getActors().add(actor_first_name_first ? MovieHit.person(fname, lname) : MovieHit.person(lname, fname));
+                more_actors = actor_set.next();
+            }
+            if (_movie_cache != null) {
+                _movie_cache.put(mid, new MovieDetails(mid, movie.getName(), movie.getYear(),
+                        movie.getDirectors(), first_names, last_names));
+            }
+        }
+        director_set.close();
+        actor_set.close();
+    }
+
+    private void search_snapshot(String title, int chunk, MovieSink sink) throws Exception {
+        /* titles, directors and actors all come from the mapped snapshot */
+        int[] docs = _snapshot.search(title);
+        for (int first = 0; first < docs.length; first += chunk) {
+            int count = Math.min(chunk, docs.length - first);
+            List<MovieHit> movies = new ArrayList<MovieHit>(count);
+            for (int i = 0; i < count; i++) {
+                int doc = docs[first + i];
+                int year = _snapshot.year(doc);
+                MovieHit movie = new MovieHit(_snapshot.id(doc), _snapshot.title(doc),
+                        year == TitleIndex.NO_YEAR ? null : Integer.toString(year));
+                _snapshot.addPeople(movie, doc, false);
+                movies.add(movie);
+            }
+            sink.accept(movies);
+        }
+    }
+
+    private void search_indexed(String title, int chunk, MovieSink sink) throws Exception {
+        /* titles come from the in-memory index; directors and actors come from the
+           snapshot or join index, or else the movie cache, and only the misses are read from imdb */
+        int[] docs = _title_index.search(title);
+        for (int first = 0; first < docs.length; first += chunk) {
+            int count = Math.min(chunk, docs.length - first);
+            List<MovieHit> movies = new ArrayList<MovieHit>(count);
+            for (int i = 0; i < count; i++) {
+                int doc = docs[first + i];
+                int year = _title_index.year(doc);
+                movies.add(new MovieHit(_title_index.id(doc), _title_index.name(doc),
+                        year == TitleIndex.NO_YEAR ? null : Integer.toString(year)));
+            }
+            add_people(movies, false);
+            sink.accept(movies);
+        }
+    }
+
+    private TitleMatches cached_titles(String title) {
+        /* the title matches of title from the search cache; when it has none, the matches
+           of its longest cached prefix are a superset, and filtering them avoids the scan */
+        if (_search_cache == null)
+            return null;
+        String key = title.toLowerCase(Locale.ROOT);
+        TitleMatches matches = _search_cache.get(key);
+        if (matches != null || !TitleIndex.isPlainSubstring(title))
+            return matches;
+        for (int end = key.length() - 1; end > 0; end--) {
+            TitleMatches superset = _search_cache.peek(key.substring(0, end));
+            if (superset != null) {
+                Metrics.cacheHit("search_results_refined");
+                matches = superset.filter(key);
+                _search_cache.put(key, matches);
+                return matches;
+            }
+        }
+        return null;
+    }
+
+    private void remember_titles(String title, TitleMatches.Recorder recorder) {
+        /* cache what a finished scan matched, unless it was too big to record */
+        TitleMatches matches = recorder == null ? null : recorder.matches();
+        if (matches != null)
+            _search_cache.put(title.toLowerCase(Locale.ROOT), matches);
+    }
+
+    private void search_cached(TitleMatches matches, boolean actor_first_name_first, int chunk, MovieSink sink)
+            throws Exception {
+        /* hydrate cached title matches a chunk at a time, as if they came from the title scan */
+        for (int first = 0; first < matches.size(); first += chunk) {
+            int count = Math.min(chunk, matches.size() - first);
+            List<MovieHit> movies = new ArrayList<MovieHit>(count);
+            for (int i = first; i < first + count; i++)
+                movies.add(matches.hit(i));
+            add_people(movies, actor_first_name_first);
+            sink.accept(movies);
+        }
+    }
+
+    /**********************************************************/
+    /* fastsearch engines */
+
+    private void begin_scan() throws Exception {
+        /* the driver only streams through a cursor inside a transaction */
+        if (_fetch_size > 0)
+            _imdb.setAutoCommit(false);
+    }
+
+    private void end_scan() throws Exception {
+        /* ends the read-only scan transaction, releasing its cursors */
+        if (_fetch_size > 0)
+            _imdb.setAutoCommit(true);
+    }
+
+    public void cursors(String title, int chunk, MovieSink sink) throws Exception {
+        /* three ordered scans of the matching movies, their directors and their actors, merged by id */
+        begin_scan();
+        try {
+            _search_statement.clearParameters();
+            _search_statement.setString(1, '%' + title + '%');
+            ResultSet movie_set = _search_statement.executeQuery();
+
+            _director_fast_statement.clearParameters();
+            _director_fast_statement.setString(1, '%' + title + '%');
+            ResultSet director_set = _director_fast_statement.executeQuery();
+
+            _actor_fast_statement.clearParameters();
+            _actor_fast_statement.setString(1, '%' + title + '%');
+            ResultSet actor_set = _actor_fast_statement.executeQuery();
+
+            /* the join cursors sit on their first row, same as after each merge step */
+            merge(movie_set, director_set, actor_set, chunk, sink);
+            movie_set.close();
+            director_set.close();
+            actor_set.close();
+        } finally {
+            end_scan();
+        }
+    }
+
+    public void aggregated(String title, int chunk, MovieSink sink) throws Exception {
+        /* fastsearch with one statement returning a row per movie, directors and actors as arrays */
+        begin_scan();
+        try {
+            _fast_aggregate_statement.clearParameters();
+            _fast_aggregate_statement.setString(1, '%' + title + '%');
+            ResultSet movie_set = _fast_aggregate_statement.executeQuery();
+
+            List<MovieHit> movies = new ArrayList<MovieHit>();
+            while (movie_set.next()) {
+                MovieHit movie = new MovieHit(movie_set.getInt(1), movie_set.getString(2),
+                        movie_set.getString(3));
+                add_names(movie_set.getArray(4), movie.getDirectors());
+                add_names(movie_set.getArray(5), movie.getActors());
+                movies.add(movie);
+                if (movies.size() == chunk) {
+                    sink.accept(movies);
+                    movies = new ArrayList<MovieHit>();
+                }
+            }
+            if (!movies.isEmpty())
+                sink.accept(movies);
+            movie_set.close();
+        } finally {
+            end_scan();
+        }
+    }
+
+    public void parallel(String title, int chunk, MovieSink sink) throws Exception {
+        /* the three-cursor fastsearch, with the director and actor scans running on their own
+           connections while the movie scan runs here, so the wait is the slowest scan, not the sum */
+        if (_imdb_directors == null)
+            throw new IllegalStateException("fastSearchEngine = parallel is not set in dbconn.config");
+        String pattern = '%' + title + '%';
+        CompletableFuture<ResultSet> directors = scan_async(_imdb_directors, _director_parallel_statement, pattern);
+        CompletableFuture<ResultSet> actors = scan_async(_imdb_actors, _actor_parallel_statement, pattern);
+        begin_scan();
+        try {
+            _search_statement.clearParameters();
+            _search_statement.setString(1, pattern);
+            ResultSet movie_set = _search_statement.executeQuery();
+
+            /* only wait for a join cursor once the movie rows are ready to be merged with it */
+            merge(movie_set, join_scan(directors), join_scan(actors), chunk, sink);
+            movie_set.close();
+        } finally {
+            end_scan();
+            end_scan_async(directors, _imdb_directors);
+            end_scan_async(actors, _imdb_actors);
+        }
+    }
+
+    private void merge(ResultSet movie_set, ResultSet director_set, ResultSet actor_set, int chunk, MovieSink sink)
+            throws Exception {
+        /* merge id-ordered movie, director and actor cursors, handing on chunk movies at a time */
+        List<MovieHit> movies = new ArrayList<MovieHit>();
+        boolean more_directors = director_set.next();
+        boolean more_actors = actor_set.next();
+        while (movie_set.next()) {
+            MovieHit movie = new MovieHit(movie_set.getInt(1), movie_set.getString(2),
+                    movie_set.getString(3));
+            more_directors = merge_directors(director_set, more_directors, movie);
+            more_actors = merge_actors(actor_set, more_actors, movie);
+            movies.add(movie);
+            if (movies.size() == chunk) {
+                sink.accept(movies);
+                movies = new ArrayList<MovieHit>();
+            }
+        }
+        if (!movies.isEmpty())
+            sink.accept(movies);
+    }
+
+    private boolean merge_directors(ResultSet director_set, boolean more, MovieHit movie) throws Exception {
+        /* add the directors of movie from a join cursor ordered by movie id; the cursor
+           is left on the first row of the next movie, and false is returned once it is exhausted */
+        int mid = movie.getMid();
+        while (more && director_set.getInt(1) < mid)
+            more = director_set.next();
+        while (more && director_set.getInt(1) == mid) {
+            movie.getDirectors().add(MovieHit.person(director_set.getString(4), director_set.getString(3)));
+            more = director_set.next();
+        }
+        return more;
+    }
+
+    private boolean merge_actors(ResultSet actor_set, boolean more, MovieHit movie) throws Exception {
+        /* same as merge_directors, for a cursor over casts x actor */
+        int mid = movie.getMid();
+        while (more && actor_set.getInt(1) < mid)
+            more = actor_set.next();
+        while (more && actor_set.getInt(1) == mid) {
+            movie.getActors().add(MovieHit.person(actor_set.getString(4), actor_set.getString(3)));
+            more = actor_set.next();
+        }
+        return more;
+    }
+
+    private CompletableFuture<ResultSet> scan_async(final Connection conn,
+            final PreparedStatement statement, final String pattern) {
+        /* run one title join on conn in the background */
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                if (_fetch_size > 0)
+                    conn.setAutoCommit(false);
+                statement.clearParameters();
+                statement.setString(1, pattern);
+                return statement.executeQuery();
+            } catch (Exception e) {
+                throw new CompletionException(e);
+            }
+        }, scan_executor());
+    }
+
+    private static synchronized ExecutorService scan_executor() {
+        /* only the parallel engine needs it, so other configurations never create one */
+        if (_scan_executor == null)
+            _scan_executor = Query.task_executor();
+        return _scan_executor;
+    }
+
+    private ResultSet join_scan(CompletableFuture<ResultSet> scan) throws Exception {
+        try {
+            return scan.join();
+        } catch (CompletionException e) {
+            throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+        }
+    }
+
+    private void end_scan_async(CompletableFuture<ResultSet> scan, Connection conn) throws Exception {
+        /* wait for the scan even after a failure, so the connection is idle before it is reused */
+        try {
+            scan.join().close();
+        } catch (CompletionException e) {
+            /* already reported, or the movie scan failed first */
+        }
+        if (_fetch_size > 0)
+            conn.setAutoCommit(true);
+    }
+
+    private void add_names(Array names, List<String> into) throws Exception {
+        /* copy a text[] column into a list; a movie without rows has a null array */
+        if (names == null)
+            return;
+        for (Object name : (Object[]) names.getArray())
+            into.add((String) name);
+    }
+}
@@ -0,0 +1,718 @@
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Ledger kept in the customer database
+ *
+ * Writes run as serializable transactions, and one that fails on a
+ * serialization conflict or deadlock is run again up to
+ * serializationRetries times after a jittered, growing pause.  A single
+ * rent is one conditional INSERT; batches, return-all and plan changes
+ * check and write in one transaction.  With rentalJournal set, single rents
+ * and returns are checked against the database plus the journal's overlay
+ * and only wait for the journal's fsync; with rentalState set, every
+ * availability and rental-count question is answered from memory and the
+ * writes go through to movierentals.
+ *
+ * Customer profiles, the plans, the journal and the rental state are
+ * shared by every ledger in the process; the connection and statements
+ * are this ledger's own, so one ledger serves one thread at a time.
+ */
+public class PostgresLedger implements Ledger {
+
+    private String _customer_login_sql = "SELECT * FROM customers WHERE login = ? and password = ?";
+    private PreparedStatement _customer_login_statement;
+
+    //Remaining rentals for a customer
+    private String _still_rent_sql = "SELECT (" +
+        "(SELECT p.max_movies FROM RentalPlans p WHERE p.pid = c.pid) - " +
+        "(SELECT count(*) FROM MovieRentals r WHERE r.cid = c.cid AND r.status = 'open')) " +
+        "FROM customers c WHERE c.cid = ?";
+    private PreparedStatement _still_rent_statement;
+
+    //Name, plan limit and open rentals of a customer in one round trip
+    private String _customer_profile_sql = "SELECT c.fname, c.lname, p.max_movies, " +
+        "(SELECT count(*) FROM MovieRentals r WHERE r.cid = c.cid AND r.status = 'open') " +
+        "FROM customers c LEFT JOIN RentalPlans p ON p.pid = c.pid WHERE c.cid = ?";
+    private PreparedStatement _customer_profile_statement;
+
+    //query to retrieve all plans
+    private String _plans_list_sql = "SELECT * FROM rentalplans";
+    private PreparedStatement _plans_list_statement;
+
+    // Check if a movie is available
+    private String _rents_movie_sql = "SELECT cid " +
+        "FROM movierentals WHERE mid = ? AND status = 'open'";
+    private PreparedStatement _rents_movie_statement;
+
+    // Open rentals for a list of movies, used to hydrate a whole chunk of search results
+    private String _rents_movies_sql = "SELECT mid, cid " +
+        "FROM movierentals WHERE mid = ANY(?) AND status = 'open' ORDER BY mid";
+    private PreparedStatement _rents_movies_statement;
+
+    //query to retrieve the number of rentals of a specific customer
+    private String _rentals_customer_sql = "SELECT count(*) FROM movierentals WHERE cid = ? AND status = 'open'";
+    private PreparedStatement _rentals_customer_statement;
+
+    //query to retrieve all rental mids of a specific customer
+    private String _rentals_mid_list_sql = "SELECT mid FROM movierentals WHERE cid = ? AND status = 'open' ORDER BY mid";
+    private PreparedStatement _rentals_mid_list_statement;
+
+    private String _rentals_refresh_sql = "SELECT mid FROM movierentals WHERE mid = ANY(?) AND cid = ? AND status = 'open'";
+    private PreparedStatement _rentals_refresh_statement;
+
+    //update statement to switch plans
+    private String _update_plan_sql = "UPDATE customers " +
+        "SET pid = ? WHERE cid = ?";
+    private PreparedStatement _update_plan_statement;
+
+    //rental query
+    private String _rent_sql = "INSERT INTO movierentals " +
+        "VALUES(?, ?, 'open')";
+    private PreparedStatement _rent_statement;
+
+    // Rent in one statement: checks the quota and availability and inserts only if both
+    // allow it, returning (rows inserted, remaining rentals before, current renter or null)
+    private String _rent_conditional_sql = "WITH remaining AS (SELECT " +
+        "(SELECT p.max_movies FROM RentalPlans p WHERE p.pid = c.pid) - " +
+        "(SELECT count(*) FROM MovieRentals r WHERE r.cid = c.cid AND r.status = 'open') AS n " +
+        "FROM customers c WHERE c.cid = ?), " +
+        "holder AS (SELECT cid FROM MovieRentals WHERE mid = ? AND status = 'open' LIMIT 1), " +
+        "rented AS (INSERT INTO MovieRentals SELECT ?, ?, 'open' " +
+        "WHERE (SELECT n FROM remaining) > 0 AND NOT EXISTS (SELECT 1 FROM holder) RETURNING mid) " +
+        "SELECT (SELECT count(*) FROM rented), (SELECT n FROM remaining), (SELECT cid FROM holder)";
+    private PreparedStatement _rent_conditional_statement;
+
+    //return a movie
+    private String _return_sql = "UPDATE movierentals " +
+        "SET status = 'closed' WHERE cid = ? AND mid = ?";
+    private PreparedStatement _return_statement;
+
+    //return every movie a customer rents
+    private String _return_all_sql = "UPDATE movierentals " +
+        "SET status = 'closed' WHERE cid = ? AND status = 'open'";
+    private PreparedStatement _return_all_statement;
+
+    //Accounting for read-only transactions
+    private String _begin_transaction_read_only_sql = "BEGIN TRANSACTION READ ONLY";
+    private PreparedStatement _begin_transaction_read_only_statement;
+
+    private String _begin_transaction_read_write_sql = "BEGIN TRANSACTION READ WRITE";
+    private PreparedStatement _begin_transaction_read_write_statement;
+
+    private String _commit_transaction_sql = "COMMIT TRANSACTION";
+    private PreparedStatement _commit_transaction_statement;
+
+    private String _rollback_transaction_sql = "ROLLBACK TRANSACTION";
+    private PreparedStatement _rollback_transaction_statement;
+
+    private final Connection _customer_db;
+
+    // Rent, return and plan changes that fail on a serialization conflict are run again
+    // up to serializationRetries times, after a random pause of up to retryBackoffMillis
+    // doubled on each retry (capped at one second)
+    private final int _serialization_retries;
+    private final long _retry_backoff_millis;
+
+    // Profiles of logged-in customers
+    private static final Map<Integer, CustomerProfile> _profiles =
+        new ConcurrentHashMap<Integer, CustomerProfile>();
+
+    // RentalPlans rarely changes, so plan lookups are served from a snapshot
+    // that is reloaded after planCacheTtlSeconds or on invalidate_plans()
+    private static volatile PlanCache _plan_cache;
+    private final long _plan_cache_ttl_nanos;
+
+    // Write-behind journal for rents and returns, only opened when rentalJournal is set in
+    // dbconn.config
+    private static RentalJournal _journal;
+
+    // Open rentals kept in memory and written through, only loaded when rentalState is set
+    // in dbconn.config; then it answers every availability and rental-count question
+    private static RentalState _rental_state;
+
+    private interface Attempt<T> {
+        T run() throws Exception;
+    }
+
+    private PostgresLedger(Properties config) throws Exception {
+        _serialization_retries = Integer.parseInt(config.getProperty("serializationRetries", "5").trim());
+        _retry_backoff_millis = Long.parseLong(config.getProperty("retryBackoffMillis", "10").trim());
+        _plan_cache_ttl_nanos = 1000000000L * Long.parseLong(config.getProperty("planCacheTtlSeconds", "300").trim());
+        _customer_db = DriverManager.getConnection(config.getProperty("customerUrl"),
+                config.getProperty("postgreSQLUser"), config.getProperty("postgreSQLPassword"));
+        _customer_db.setTransactionIsolation(Connection.TRANSACTION_SERIALIZABLE);
+    }
+
+    /* connects to customerUrl in config and prepares the statements; the first ledger of
+       the process also opens the rental journal or loads the rental state */
+    public static PostgresLedger open(Properties config) throws Exception {
+        String journal_file = config.getProperty("rentalJournal", "").trim();
+        boolean rental_state = Boolean.parseBoolean(config.getProperty("rentalState", "false"));
+        if (rental_state && journal_file.length() > 0)
+            throw new IllegalStateException("rentalState and rentalJournal cannot both be set");
+        Class.forName(config.getProperty("postgreSQLDriver"));
+        PostgresLedger ledger = new PostgresLedger(config);
+        try {
+            ledger.prepare();
+            if (journal_file.length() > 0)
+                open_journal(new File(journal_file), config);
+            if (rental_state)
+                load_rental_state(ledger._customer_db);
+            /* warms the plan cache */
+            ledger.plan_cache();
+        } catch (Exception e) {
+            ledger.close();
+            throw e;
+        }
+        return ledger;
+    }
+
+    private void prepare() throws Exception {
+        _customer_login_statement = Metrics.prepare(_customer_db, "customer_login", _customer_login_sql);
+        _begin_transaction_read_only_statement = Metrics.prepare(_customer_db, "begin_transaction_read_only", _begin_transaction_read_only_sql);
+        _begin_transaction_read_write_statement = Metrics.prepare(_customer_db, "begin_transaction_read_write", _begin_transaction_read_write_sql);
+        _commit_transaction_statement = Metrics.prepare(_customer_db, "commit_transaction", _commit_transaction_sql);
+        _rollback_transaction_statement = Metrics.prepare(_customer_db, "rollback_transaction", _rollback_transaction_sql);
+        _rents_movie_statement = Metrics.prepare(_customer_db, "rents_movie", _rents_movie_sql);
+        _rents_movies_statement = Metrics.prepare(_customer_db, "rents_movies", _rents_movies_sql);
+        _still_rent_statement = Metrics.prepare(_customer_db, "still_rent", _still_rent_sql);
+        _customer_profile_statement = Metrics.prepare(_customer_db, "customer_profile", _customer_profile_sql);
+        _plans_list_statement = Metrics.prepare(_customer_db, "plans_list", _plans_list_sql);
+        _update_plan_statement = Metrics.prepare(_customer_db, "update_plan", _update_plan_sql);
+        _rent_statement = Metrics.prepare(_customer_db, "rent", _rent_sql);
+        _rent_conditional_statement = Metrics.prepare(_customer_db, "rent_conditional", _rent_conditional_sql);
+        _return_statement = Metrics.prepare(_customer_db, "return", _return_sql);
+        _return_all_statement = Metrics.prepare(_customer_db, "return_all", _return_all_sql);
+        _rentals_customer_statement = Metrics.prepare(_customer_db, "rentals_customer", _rentals_customer_sql);
+        _rentals_mid_list_statement = Metrics.prepare(_customer_db, "rentals_mid_list", _rentals_mid_list_sql);
+        _rentals_refresh_statement = Metrics.prepare(_customer_db, "rentals_refresh", _rentals_refresh_sql);
+    }
+
+    private static synchronized void open_journal(File path, Properties config) throws Exception {
+        /* opened by the first ledger, which replays what a previous run left in it;
+           the flusher gets a connection of its own */
+        if (_journal == null) {
+            _journal = RentalJournal.open(path, DriverManager.getConnection(config.getProperty("customerUrl"),
+                    config.getProperty("postgreSQLUser"), config.getProperty("postgreSQLPassword")));
+        }
+    }
+
+    private static synchronized void load_rental_state(Connection customer_db) throws Exception {
+        /* loaded by the first ledger; from then on every write to movierentals goes through it */
+        if (_rental_state == null)
+            _rental_state = RentalState.load(customer_db);
+    }
+
+    public void close() throws Exception {
+        /* the journal and rental state stay open for the other ledgers of the process */
+        _customer_db.close();
+    }
+
+    /**********************************************************/
+    /* reads */
+
+    public int login(String login, String password) throws Exception {
+        _begin_transaction_read_only_statement.executeUpdate();
+        _customer_login_statement.clearParameters();
+        _customer_login_statement.setString(1, login);
+        _customer_login_statement.setString(2, password);
+        ResultSet cid_set = _customer_login_statement.executeQuery();
+        int cid = cid_set.next() ? cid_set.getInt(1) : -1;
+        cid_set.close();
+        _commit_transaction_statement.executeUpdate();
+        return cid;
+    }
+
+    public CustomerProfile profile(int cid) throws Exception {
+        /* the cached profile of cid, loaded on first use; every write of cid drops it */
+        CustomerProfile profile = _profiles.get(cid);
+        if (profile != null)
+            return profile;
+        _customer_profile_statement.clearParameters();
+        _customer_profile_statement.setInt(1, cid);
+        ResultSet profile_set = _customer_profile_statement.executeQuery();
+        if (profile_set.next()) {
+            profile = new CustomerProfile(cid,
+                    profile_set.getString(1) + " " + profile_set.getString(2),
+                    profile_set.getInt(3),
+                    _rental_state != null ? _rental_state.openCount(cid)
+                    : profile_set.getInt(4) + (_journal == null ? 0 : _journal.openDelta(cid)));
+            _profiles.put(cid, profile);
+        }
+        profile_set.close();
+        return profile;
+    }
+
+    private void forget_profile(int cid) {
+        /* a write changed cid's rentals or plan, or saw data the cached profile did not
+           expect; reload it at the next prompt.  Dropping it rather than adjusting it in place
+           means a reload by another session in between cannot count a change twice */
+        _profiles.remove(cid);
+    }
+
+    public List<RentalPlan> plans() throws Exception {
+        return plan_cache().all();
+    }
+
+    public RentalPlan plan(int pid) throws Exception {
+        /* an unknown pid does not reload the snapshot, so a new plan shows up after
+           invalidate_plans() or the TTL, never at a user's request */
+        return plan_cache().get(pid);
+    }
+
+    private PlanCache plan_cache() throws Exception {
+        /* the current plans snapshot, reloaded once it is older than the TTL */
+        PlanCache plans = _plan_cache;
+        if (plans == null || plans.olderThan(_plan_cache_ttl_nanos)) {
+            plans = new PlanCache(load_plans());
+            _plan_cache = plans;
+        }
+        return plans;
+    }
+
+    private List<RentalPlan> load_plans() throws Exception {
+        /* all available plans: SELECT * FROM plan */
+        List<RentalPlan> plans = new ArrayList<RentalPlan>();
+        ResultSet plans_set = _plans_list_statement.executeQuery();
+        while (plans_set.next()) {
+            plans.add(new RentalPlan(plans_set.getInt("pid"), plans_set.getString("name"),
+                    plans_set.getInt("max_movies"), plans_set.getDouble("fee")));
+        }
+        plans_set.close();
+        return plans;
+    }
+
+    public static void invalidate_plans() {
+        /* call after changing RentalPlans so the next lookup reloads it */
+        _plan_cache = null;
+    }
+
+    public int[] renters(int[] mids) throws Exception {
+        /* from the rental state when there is one; otherwise from movierentals, with a
+           single movie's own query or one query for a list, and then from the journal
+           for the movies it has not applied yet */
+        if (mids.length == 1)
+            return new int[] { renter(mids[0]) };
+        int[] renters = new int[mids.length];
+        if (_rental_state != null) {
+            for (int i = 0; i < mids.length; i++)
+                renters[i] = _rental_state.renter(mids[i]);
+            return renters;
+        }
+        if (mids.length > 1) {
+            Integer[] boxed = new Integer[mids.length];
+            for (int i = 0; i < mids.length; i++)
+                boxed[i] = mids[i];
+            _rents_movies_statement.clearParameters();
+            _rents_movies_statement.setArray(1, _customer_db.createArrayOf("int4", boxed));
+            ResultSet rents_set = _rents_movies_statement.executeQuery();
+            Map<Integer, Integer> open = new HashMap<Integer, Integer>();
+            while (rents_set.next())
+                open.put(rents_set.getInt(1), rents_set.getInt(2));
+            rents_set.close();
+            for (int i = 0; i < mids.length; i++)
+                renters[i] = open.getOrDefault(mids[i], -1);
+        }
+        if (_journal != null) {
+            for (int i = 0; i < mids.length; i++) {
+                Integer pending = _journal.renter(mids[i]);
+                if (pending != null)
+                    renters[i] = pending;
+            }
+        }
+        return renters;
+    }
+
+    private int renter(int mid) throws Exception {
+        /* find the customer id (cid) of whoever currently rents the movie mid; return -1 if none */
+        if (_rental_state != null)
+            return _rental_state.renter(mid);
+        if (_journal != null) {
+            Integer pending = _journal.renter(mid);
+            if (pending != null)
+                return pending;
+        }
+        _rents_movie_statement.clearParameters();
+        _rents_movie_statement.setInt(1, mid);
+        ResultSet rents_set = _rents_movie_statement.executeQuery();
+        int cid = rents_set.next() ? rents_set.getInt("cid") : -1;
+        rents_set.close();
+        return cid;
+    }
+
+    private int remaining(int cid) throws Exception {
+        /* how many movies cid can still rent: the plan's limit minus the open rentals */
+        if (_rental_state != null) {
+            CustomerProfile profile = profile(cid);
+            return profile == null ? 0 : profile.getMaxMovies() - _rental_state.openCount(cid);
+        }
+        _still_rent_statement.clearParameters();
+        _still_rent_statement.setInt(1, cid);
+        ResultSet still_set = _still_rent_statement.executeQuery();
+        int c = still_set.next() ? still_set.getInt(1) : 0;
+        still_set.close();
+        if (_journal != null)
+            c -= _journal.openDelta(cid);
+        return c;
+    }
+
+    public int[] rentals(int cid) throws Exception {
+        List<Integer> mids = new ArrayList<Integer>();
+        if (_rental_state != null) {
+            for (int mid : _rental_state.rentals(cid))
+                mids.add(mid);
+        } else {
+            _rentals_mid_list_statement.clearParameters();
+            _rentals_mid_list_statement.setInt(1, cid);
+            ResultSet rented_set = _rentals_mid_list_statement.executeQuery();
+            while (rented_set.next())
+                mids.add(rented_set.getInt(1));
+            rented_set.close();
+        }
+        if (_journal != null) {
+            mids.removeAll(_journal.pending(cid, false));
+            mids.addAll(_journal.pending(cid, true));
+            mids.sort(null);
+        }
+        int[] rented = new int[mids.size()];
+        for (int i = 0; i < rented.length; i++)
+            rented[i] = mids.get(i);
+        return rented;
+    }
+
+    /**********************************************************/
+    /* writes */
+
+    public boolean rent(int cid, int[] mids) throws Exception {
+        try {
+            if (mids.length == 1)
+                return retry("transaction_rent", () -> rent_one(cid, mids[0]));
+            return retry("transaction_rent_batch", () -> exclusive(cid, mids, () -> rent_batch(cid, mids)));
+        } finally {
+            forget_profile(cid);
+        }
+    }
+
+    public boolean giveBack(int cid, int[] mids) throws Exception {
+        try {
+            if (mids.length == 1)
+                return retry("transaction_return", () -> return_one(cid, mids[0]));
+            return retry("transaction_return_batch", () -> exclusive(cid, mids, () -> return_batch(cid, mids)));
+        } finally {
+            forget_profile(cid);
+        }
+    }
+
+    public int returnAll(int cid) throws Exception {
+        /* every movie cid rents, with one statement */
+        try {
+            return retry("transaction_return_all", () -> exclusive(cid, null, () -> {
+                _return_all_statement.clearParameters();
+                _return_all_statement.setInt(1, cid);
+                return _return_all_statement.executeUpdate();
+            }));
+        } finally {
+            forget_profile(cid);
+        }
+    }
+
+    public boolean choosePlan(int cid, int pid) throws Exception {
+        try {
+            return retry("transaction_choose_plan", () -> exclusive(cid, new int[0], () -> choose_plan(cid, pid)));
+        } finally {
+            forget_profile(cid);
+        }
+    }
+
+    private boolean rent_one(int cid, int mid) throws Exception {
+        /* the quota check, availability check and insert are one statement, which runs
+           as its own serializable transaction */
+        if (_journal != null)
+            return rent_journaled(cid, mid);
+        if (_rental_state != null)
+            return rent_stateful(cid, mid);
+        _rent_conditional_statement.clearParameters();
+        _rent_conditional_statement.setInt(1, cid);
+        _rent_conditional_statement.setInt(2, mid);
+        _rent_conditional_statement.setInt(3, mid);
+        _rent_conditional_statement.setInt(4, cid);
+        ResultSet rent_set = _rent_conditional_statement.executeQuery();
+        rent_set.next();
+        boolean rented = rent_set.getInt(1) == 1;
+        rent_set.close();
+        return rented;
+    }
+
+    private boolean rent_journaled(int cid, int mid) throws Exception {
+        /* checked and queued holding the journal's locks of cid and mid, so no other rent or
+           return of them in this process can come in between, and checked again if the
+           flusher committed during the check; the caller only waits for the journal fsync */
+        long seq;
+        RentalJournal.Guard guard = _journal.lock(cid, new int[] { mid });
+        try {
+            int remaining;
+            int hasMovie;
+            long stamp;
+            do {
+                stamp = _journal.readStamp();
+                remaining = remaining(cid);
+                hasMovie = remaining > 0 ? renter(mid) : -1;
+            } while (!_journal.validate(stamp));
+            if (remaining <= 0 || hasMovie != -1)
+                return false;
+            seq = _journal.enqueue(RentalJournal.RENT, mid, cid);
+        } finally {
+            guard.unlock();
+        }
+        _journal.awaitDurable(seq);
+        return true;
+    }
+
+    private boolean rent_stateful(int cid, int mid) throws Exception {
+        /* checked against the rental state and written through to movierentals, all while
+           holding the locks of cid and mid; other movies and customers are not held up */
+        CustomerProfile profile = profile(cid);
+        RentalState.Guard guard = _rental_state.lock(cid, new int[] { mid });
+        try {
+            int remaining = (profile == null ? 0 : profile.getMaxMovies()) - guard.openCount(cid);
+            if (remaining <= 0 || guard.renter(mid) != -1)
+                return false;
+            _rent_statement.clearParameters();
+            _rent_statement.setInt(1, mid);
+            _rent_statement.setInt(2, cid);
+            _rent_statement.executeUpdate();
+            guard.rented(cid, mid);
+        } finally {
+            guard.unlock();
+        }
+        return true;
+    }
+
+    private boolean return_one(int cid, int mid) throws Exception {
+        if (_journal != null)
+            return return_journaled(cid, mid);
+        if (_rental_state != null)
+            return return_stateful(cid, mid);
+        _begin_transaction_read_write_statement.executeUpdate();
+        if (renter(mid) != cid) {
+            _rollback_transaction_statement.executeUpdate();
+            return false;
+        }
+        _return_statement.clearParameters();
+        _return_statement.setInt(1, cid);
+        _return_statement.setInt(2, mid);
+        _return_statement.executeUpdate();
+        _commit_transaction_statement.executeUpdate();
+        return true;
+    }
+
+    private boolean return_journaled(int cid, int mid) throws Exception {
+        /* the journal counterpart of a return, see rent_journaled */
+        long seq;
+        RentalJournal.Guard guard = _journal.lock(cid, new int[] { mid });
+        try {
+            int renter;
+            long stamp;
+            do {
+                stamp = _journal.readStamp();
+                renter = renter(mid);
+            } while (!_journal.validate(stamp));
+            if (renter != cid)
+                return false;
+            seq = _journal.enqueue(RentalJournal.RETURN, mid, cid);
+        } finally {
+            guard.unlock();
+        }
+        _journal.awaitDurable(seq);
+        return true;
+    }
+
+    private boolean return_stateful(int cid, int mid) throws Exception {
+        /* the rental state counterpart of a return, see rent_stateful */
+        RentalState.Guard guard = _rental_state.lock(cid, new int[] { mid });
+        try {
+            if (guard.renter(mid) != cid)
+                return false;
+            _return_statement.clearParameters();
+            _return_statement.setInt(1, cid);
+            _return_statement.setInt(2, mid);
+            _return_statement.executeUpdate();
+            guard.returned(cid, mid);
+        } finally {
+            guard.unlock();
+        }
+        return true;
+    }
+
+    private boolean rent_batch(int cid, int[] mids) throws Exception {
+        /* rent all of mids to cid in one transaction, or none of them: the whole list is
+           checked first, then the rows are inserted with one JDBC batch */
+        _begin_transaction_read_write_statement.executeUpdate();
+
+        if (remaining(cid) < mids.length) {
+            _rollback_transaction_statement.executeUpdate();
+            return false;
+        }
+
+        /* who rents any of them now, in one query */
+        Integer[] boxed = new Integer[mids.length];
+        for (int i = 0; i < mids.length; i++)
+            boxed[i] = mids[i];
+        _rents_movies_statement.clearParameters();
+        _rents_movies_statement.setArray(1, _customer_db.createArrayOf("int4", boxed));
+        ResultSet rents_set = _rents_movies_statement.executeQuery();
+        boolean taken = rents_set.next();
+        rents_set.close();
+        if (taken) {
+            _rollback_transaction_statement.executeUpdate();
+            return false;
+        }
+
+        _rent_statement.clearBatch();
+        for (int mid : mids) {
+            _rent_statement.setInt(1, mid);
+            _rent_statement.setInt(2, cid);
+            _rent_statement.addBatch();
+        }
+        _rent_statement.executeBatch();
+        _commit_transaction_statement.executeUpdate();
+        return true;
+    }
+
+    private boolean return_batch(int cid, int[] mids) throws Exception {
+        /* return all of mids in one transaction, or none of them if cid does not rent one */
+        _begin_transaction_read_write_statement.executeUpdate();
+
+        BitSet open = new BitSet();
+        _rentals_mid_list_statement.clearParameters();
+        _rentals_mid_list_statement.setInt(1, cid);
+        ResultSet rented_set = _rentals_mid_list_statement.executeQuery();
+        while (rented_set.next())
+            open.set(rented_set.getInt(1));
+        rented_set.close();
+
+        for (int mid : mids) {
+            if (mid < 0 || !open.get(mid)) {
+                _rollback_transaction_statement.executeUpdate();
+                return false;
+            }
+        }
+
+        _return_statement.clearBatch();
+        for (int mid : mids) {
+            _return_statement.setInt(1, cid);
+            _return_statement.setInt(2, mid);
+            _return_statement.addBatch();
+        }
+        _return_statement.executeBatch();
+        _commit_transaction_statement.executeUpdate();
+        return true;
+    }
+
+    private boolean choose_plan(int cid, int pid) throws Exception {
+        /* switch cid to plan pid, if it allows the movies cid is renting now */
+        RentalPlan plan = plan(pid);
+        if (plan == null)
+            return false;
+
+        /* the count and the update are one serializable transaction, so a rent that
+           commits in between makes this one fail with 40001 and retry run it again */
+        _begin_transaction_read_write_statement.executeUpdate();
+
+        _rentals_customer_statement.clearParameters();
+        _rentals_customer_statement.setInt(1, cid);
+        ResultSet rental_set = _rentals_customer_statement.executeQuery();
+        rental_set.next();
+        int c1 = rental_set.getInt(1);
+        rental_set.close();
+        if (_journal != null)
+            c1 += _journal.openDelta(cid);
+
+        if (c1 > plan.getMaxMovies()) {
+            _rollback_transaction_statement.executeUpdate();
+            return false;
+        }
+        _update_plan_statement.clearParameters();
+        _update_plan_statement.setInt(1, pid);
+        _update_plan_statement.setInt(2, cid);
+        _update_plan_statement.executeUpdate();
+        _commit_transaction_statement.executeUpdate();
+        return true;
+    }
+
+    /**********************************************************/
+
+    private <T> T retry(String transaction, Attempt<T> attempt) throws Exception {
+        /* run attempt, and run it again after a jittered, growing pause each time it fails
+           on a serialization conflict (SQLState 40001) or deadlock (40P01) */
+        for (int retry = 0; ; retry++) {
+            try {
+                return attempt.run();
+            } catch (Exception e) {
+                if (!is_conflict(e) || retry >= _serialization_retries)
+                    throw e;
+                Metrics.conflict(transaction);
+                /* the failed transaction, if one was begun, has to end before the next try */
+                try {
+                    _rollback_transaction_statement.executeUpdate();
+                } catch (SQLException ignored) {
+                }
+                long backoff = Math.min(1000, _retry_backoff_millis << Math.min(retry, 20));
+                Thread.sleep(ThreadLocalRandom.current().nextLong(backoff + 1));
+            }
+        }
+    }
+
+    private <T> T exclusive(int cid, int[] mids, Attempt<T> attempt) throws Exception {
+        /* run attempt straight against movierentals, changing only cid's rentals of mids
+           (all of cid's rentals when mids is null): with a journal, holding its locks of cid
+           and mids so nothing is queued for them meanwhile, once what was queued before has
+           been applied; with the rental state, holding the locks of cid and mids, and
+           re-reading them into the state afterwards */
+        if (_journal != null) {
+            RentalJournal.Guard guard = _journal.lock(cid, mids);
+            try {
+                _journal.awaitApplied();
+                return attempt.run();
+            } finally {
+                guard.unlock();
+            }
+        } else if (_rental_state != null) {
+            RentalState.Guard guard = _rental_state.lock(cid, mids);
+            try {
+                T result = attempt.run();
+                /* a failed attempt committed nothing, and may have left its transaction aborted */
+                guard.refresh(cid, _rentals_refresh_statement);
+                return result;
+            } finally {
+                guard.unlock();
+            }
+        } else {
+            return attempt.run();
+        }
+    }
+
+    private static boolean is_conflict(Throwable e) {
+        for (; e != null; e = e.getCause()) {
+            if (e instanceof SQLException) {
+                String state = ((SQLException) e).getSQLState();
+                if ("40001".equals(state) || "40P01".equals(state))
+                    return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,74 @@
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Bounded pool of prepared Query objects shared by concurrent customer sessions
+ */
+public class QueryPool {
+
+    /* each pooled Query owns one imdb and one customer connection together with
+       the statements prepared on them, so a session that borrows a Query gets
+       its prepared-statement cache for free */
+    private final ConcurrentLinkedQueue<Query> _idle = new ConcurrentLinkedQueue<Query>();
+    private final Semaphore _permits;
+    private final int _size;
+    private volatile boolean _closed;
+
+    public QueryPool(int size) {
+        if (size <= 0)
+            throw new IllegalArgumentException("pool size must be positive: " + size);
+        _size = size;
+        _permits = new Semaphore(size, true);
+    }
+
+    public int size() {
+        return _size;
+    }
+
+    /* waits until a Query is free; connections are opened lazily, up to the pool size */
+    public Query acquire() throws Exception {
+        if (_closed)
+            throw new IllegalStateException("pool is closed");
+        _permits.acquire();
+        Query q = _idle.poll();
+        if (q != null)
+            return q;
+        q = new Query();
+        try {
+            q.openConnection();
+            q.prepareStatements();
+            return q;
+        } catch (Exception e) {
+            /* closes whatever connections were opened before the failure, and frees the permit */
+            discard(q);
+            throw e;
+        }
+    }
+
+    /* hands a Query back after a transaction finished normally */
+    public void release(Query q) throws Exception {
+        if (_closed) {
+            q.closeConnection();
+        } else {
+            _idle.offer(q);
+        }
+        _permits.release();
+    }
+
+    /* drops a Query whose connections may be broken or left inside a transaction */
+    public void discard(Query q) {
+        try {
+            q.closeConnection();
+        } catch (Exception e) {
+            /* the connection is being thrown away anyway */
+        }
+        _permits.release();
+    }
+
+    public void close() throws Exception {
+        _closed = true;
+        Query q;
+        while ((q = _idle.poll()) != null)
+            q.closeConnection();
+    }
+}
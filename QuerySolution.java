@@ -1,180 +1,108 @@
 /* Parth Goel, Humad Syed, Vincent Tran */import java.util.Properties;
-import java.sql.Connection;
-import java.sql.DriverManager;
-import java.sql.PreparedStatement;
-import java.sql.ResultSet;
 
-import java.text.DecimalFormat;
-import java.text.NumberFormat;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
+import java.io.File;
 import java.io.FileInputStream;
+import java.io.PrintStream;
 
 /**
  * Runs queries against a back-end database
+ *
+ * Every transaction reads and writes through the Catalog and Ledger of a
+ * Storage, so the same code serves storage = postgres and storage = embedded.
  */
 public class Query {
     private static Properties configProps = new Properties();
 
-    private static String imdbUrl;
-    private static String customerUrl;
-
     private static String postgreSQLDriver;
-    private static String postgreSQLUser;
-    private static String postgreSQLPassword;
-
-    // DB Connection
-    private Connection _imdb;
-    private Connection _customer_db;
-
-    // Canned queries
-
-    private String _search_sql = "SELECT * FROM movie WHERE name ilike ? ORDER BY id";
-    private PreparedStatement _search_statement;
-
-    private String _director_mid_sql = "SELECT y.* "
-                     + "FROM movie_directors x, directors y "
-                     + "WHERE x.mid = ? and x.did = y.id";
-    private PreparedStatement _director_mid_statement;
-    
-    // Query to help retrieve actors of a specific movie
-    private String _actor_mid_sql = "SELECT y.* "
-            + "FROM casts x, actor y "
-            + "WHERE x.mid = ? and x.pid = y.id";
-    private PreparedStatement _actor_mid_statement;
-    
-    // Check if a movie is available
-    private String _rents_movie_sql = "SELECT cid " +
-        "FROM movierentals WHERE mid = ? AND status = 'open'";
-    private PreparedStatement _rents_movie_statement;
-    
-    /* Queries for fast search */
-    /* Define any queries you use for fastsearch here */
-    private String _director_fast_sql = "SELECT x.id, z.* "
-                     + "FROM movie x, movie_directors y, directors z "
-                     + "WHERE upper(x.name) like upper(?) and x.id = y.mid and y.did = z.id "
-                     + "ORDER BY x.id";
-    private PreparedStatement _director_fast_statement;
-
-    private String _actor_fast_sql = "SELECT x.id, z.* "
-                     + "FROM movie x, casts y, actor z "
-                     + "WHERE upper(x.name) like upper(?) and x.id = y.mid and y.pid = z.id "
-                     + "ORDER BY x.id";
-    private PreparedStatement _actor_fast_statement;
-    
-    /* End of fast search queries*/
-    
-
-    private String _customer_login_sql = "SELECT * FROM customers WHERE login = ? and password = ?";
-    private PreparedStatement _customer_login_statement;
-    
-    //Retrieve customer name information
-    private String _customer_name_sql = "SELECT fname, lname " +
-        "FROM customers WHERE cid = ?";
-    private PreparedStatement _customer_name_statement;
-    
-    //Remaining rentals for a customer
-    private String _still_rent_sql = "SELECT (" +
-        "(SELECT p.max_movies FROM RentalPlans p WHERE p.pid = c.pid) - " +
-        "(SELECT count(*) FROM MovieRentals r WHERE r.cid = c.cid AND r.status = 'open')) " +
-        "FROM customers c WHERE c.cid = ?";
-    private PreparedStatement _still_rent_statement;
-    
-    //query to retrieve all plans
-    private String _plans_list_sql = "SELECT * FROM rentalplans";
-    private PreparedStatement _plans_list_statement;
-    
-    //query to retrieve the rentals allowed in a plan
-    private String _plans_maxrentals_sql = "SELECT max_movies FROM rentalplans WHERE pid = ?";
-    private PreparedStatement _plans_maxrentals_statement;
-    
-    //query to retrieve the number of rentals of a specific customer
-    private String _rentals_customer_sql = "SELECT count(*) FROM movierentals WHERE cid = ? AND status = 'open'";
-    private PreparedStatement _rentals_customer_statement;
-    
-    //query to retrieve all rental mids of a specific customer
-    private String _rentals_mid_list_sql = "SELECT mid FROM movierentals WHERE cid = ? AND status = 'open'";
-    private PreparedStatement _rentals_mid_list_statement;
-    
-    //query to retrieve the name of a movie by id
-    private String _movie_name_sql = "SELECT name FROM movie WHERE id = ?";
-    private PreparedStatement _movie_name_statement;
-    
-    //check if the given plan ID is valid
-    private String _valid_plan_sql = "SELECT pid " +
-        "FROM rentalplans WHERE pid = ?";
-    private PreparedStatement _valid_plan_statement;
-    
-    //check if the given movie id is valid
-    private String _valid_movie_sql = "SELECT id " +
-        "FROM movie WHERE id = ?";
-    private PreparedStatement _valid_movie_statement;
-    
-    //update statement to switch plans
-    private String _update_plan_sql = "UPDATE customers " +
-        "SET pid = ? WHERE cid = ?";
-    private PreparedStatement _update_plan_statement;
-    
-    //Format to display plan costs
-    private NumberFormat feeFormat = new DecimalFormat("0.00"); 
-    
-    //rental query
-    private String _rent_sql = "INSERT INTO movierentals " +
-        "VALUES(?, ?, 'open')";
-    private PreparedStatement _rent_statement;
-    
-    //return a movie
-    private String _return_sql = "UPDATE movierentals " +
-		"SET status = 'closed' WHERE cid = ? AND mid = ?";
-	private PreparedStatement _return_statement;
-    
-    //Accounting for read-only transactions
-    private String _begin_transaction_read_only_sql = "BEGIN TRANSACTION READ ONLY";
-    private PreparedStatement _begin_transaction_read_only_statement;
-
-    private String _begin_transaction_read_write_sql = "BEGIN TRANSACTION READ WRITE";
-    private PreparedStatement _begin_transaction_read_write_statement;
-
-    private String _commit_transaction_sql = "COMMIT TRANSACTION";
-    private PreparedStatement _commit_transaction_statement;
-
-    private String _rollback_transaction_sql = "ROLLBACK TRANSACTION";
-    private PreparedStatement _rollback_transaction_statement;
-     
+
+    // Number of movies whose directors, actors and rentals are fetched per round trip
+    private static int hydrationChunkSize;
+
+    // Where customers, plans, rentals and movies live: "postgres" is the imdb and customer
+    // databases, with connections of this Query's own; "embedded" a catalog and ledger in
+    // this process, read from the embeddedCatalog and embeddedLedger files and shared by
+    // every Query
+    private static String storage;
+    private static Storage _embedded;
+
+    private Storage _storage;
+    private Catalog _catalog;
+    private Ledger _ledger;
+
+    // Where transactions print their results; a server session points this at its client
+    private PrintStream _out = System.out;
 
     public Query() {
     }
 
+    public void setOutput(PrintStream out) {
+        _out = out;
+    }
+
     /**********************************************************/
     /* Connections to postgres databases */
 
     public void openConnection() throws Exception {
-        configProps.load(new FileInputStream("dbconn.config"));
-        
-        
-        imdbUrl        = configProps.getProperty("imdbUrl");
-        customerUrl    = configProps.getProperty("customerUrl");
+        loadConfig();
+        if (storage.equals("embedded")) {
+            _storage = helper_open_embedded();
+        } else {
+            /* open connections to TWO databases: imdb and the customer database */
+            _storage = Storage.postgres(configProps);
+        }
+        _catalog = _storage.catalog();
+        _ledger = _storage.ledger();
+    }
+
+    private static synchronized void loadConfig() throws Exception {
+        /* read dbconn.config and load the driver once per process; a QueryPool opens many Query objects */
+        if (storage != null)
+            return;
+        /* -Ddbconn.config=<file> points a benchmark or test run at other databases */
+        configProps.load(new FileInputStream(System.getProperty("dbconn.config", "dbconn.config")));
+
+
         postgreSQLDriver   = configProps.getProperty("postgreSQLDriver");
-        postgreSQLUser     = configProps.getProperty("postgreSQLUser");
-        postgreSQLPassword = configProps.getProperty("postgreSQLPassword");
+        hydrationChunkSize = Integer.parseInt(configProps.getProperty("hydrationChunkSize", "500").trim());
+        if (hydrationChunkSize < 1)
+            throw new IllegalStateException("hydrationChunkSize must be at least 1: " + hydrationChunkSize);
+        String rentalJournal = configProps.getProperty("rentalJournal", "").trim();
+        boolean rentalState  = Boolean.parseBoolean(configProps.getProperty("rentalState", "false"));
+        String name          = configProps.getProperty("storage", "postgres").trim();
+        if (!name.equals("postgres") && !name.equals("embedded"))
+            throw new IllegalStateException("unknown storage " + name);
+        if (name.equals("embedded") && (rentalState || rentalJournal.length() > 0))
+            throw new IllegalStateException("rentalState and rentalJournal only apply to storage = postgres");
+        if (Boolean.parseBoolean(configProps.getProperty("metrics", "false")))
+            Metrics.enable();
 
 
         /* load jdbc drivers */
-        Class.forName(postgreSQLDriver).newInstance();
-
-        /* open connections to TWO databases: imdb and the customer database */
-        _imdb = DriverManager.getConnection(imdbUrl, // database
-                postgreSQLUser, // user
-                postgreSQLPassword); // password
+        if (name.equals("postgres"))
+            Class.forName(postgreSQLDriver).newInstance();
+        storage = name;
+    }
 
-        _customer_db = DriverManager.getConnection(customerUrl, // database
-                postgreSQLUser, // user
-                postgreSQLPassword); // password
-        _customer_db.setTransactionIsolation(4); // serializable isolation level
+    private static synchronized Storage helper_open_embedded() throws Exception {
+        /* opened by the first Query; the ledger replays whatever its file logged last run */
+        if (_embedded == null) {
+            _embedded = Storage.embedded(new File(configProps.getProperty("embeddedCatalog", "").trim()),
+                    new File(configProps.getProperty("embeddedLedger", "").trim()));
+        }
+        return _embedded;
     }
 
     public void closeConnection() throws Exception {
-        _imdb.close();
-        _customer_db.close();
+        /* an embedded store stays open for the other Query objects of the process,
+           and after a failed openConnection there is nothing to close */
+        if (_storage == null || storage.equals("embedded"))
+            return;
+        _storage.close();
     }
 
     /**********************************************************/
@@ -183,39 +111,7 @@ public class Query {
        that the parameters (with ?) are still not filled in */
 
     public void prepareStatements() throws Exception {
-
-        _search_statement = _imdb.prepareStatement(_search_sql);
-        _director_mid_statement = _imdb.prepareStatement(_director_mid_sql);
-        
-        /* add any prepare statements for your fastsearch here */
-        _director_fast_statement = _imdb.prepareStatement(_director_fast_sql);
-        _actor_fast_statement = _imdb.prepareStatement(_actor_fast_sql);
-        /* end of fastsearch prepare statements */
-        
-        _customer_login_statement = _customer_db.prepareStatement(_customer_login_sql);
-        _begin_transaction_read_write_statement = _customer_db.prepareStatement(_begin_transaction_read_write_sql);
-        _commit_transaction_statement = _customer_db.prepareStatement(_commit_transaction_sql);
-        _rollback_transaction_statement = _customer_db.prepareStatement(_rollback_transaction_sql);
-         
-
-        /* add here more prepare statements for all the other queries you need */
-        _actor_mid_statement = _imdb.prepareStatement(_actor_mid_sql);
-        _rents_movie_statement = _customer_db.prepareStatement(_rents_movie_sql);
-        
-        _begin_transaction_read_only_statement = _customer_db.prepareStatement(_begin_transaction_read_only_sql);
-        
-        _customer_name_statement = _customer_db.prepareStatement(_customer_name_sql);
-        _still_rent_statement = _customer_db.prepareStatement(_still_rent_sql);
-        _plans_list_statement = _customer_db.prepareStatement(_plans_list_sql);
-        _valid_plan_statement = _customer_db.prepareStatement(_valid_plan_sql);
-        _update_plan_statement = _customer_db.prepareStatement(_update_plan_sql);
-        _rent_statement = _customer_db.prepareStatement(_rent_sql);
-        _valid_movie_statement = _imdb.prepareStatement(_valid_movie_sql);
-        _return_statement = _customer_db.prepareStatement(_return_sql);
-        _plans_maxrentals_statement = _customer_db.prepareStatement(_plans_maxrentals_sql);
-        _rentals_customer_statement = _customer_db.prepareStatement(_rentals_customer_sql);
-        _rentals_mid_list_statement = _customer_db.prepareStatement(_rentals_mid_list_sql);
-        _movie_name_statement = _imdb.prepareStatement(_movie_name_sql);
+        /* the catalog and ledger prepare their statements as openConnection opens them */
     }
 
 
@@ -224,350 +120,360 @@ public class Query {
 
     public int helper_compute_remaining_rentals(int cid) throws Exception {
         /* how many movies can she/he still rent ? */
-        /* you have to compute and return the difference between the customer's plan
-           and the count of oustanding rentals */
-        _still_rent_statement.clearParameters();
-        _still_rent_statement.setInt(1, cid);
-        ResultSet still_set = _still_rent_statement.executeQuery();
-        still_set.next();
-        int c = still_set.getInt(1);
-        still_set.close();
-        return c;
+        CustomerProfile profile = _ledger.profile(cid);
+        return profile == null ? 0 : profile.remaining();
     }
 
     public String helper_compute_customer_name(int cid) throws Exception {
         /* you find  the first + last name of the current customer */
-        _customer_name_statement.clearParameters();
-        _customer_name_statement.setInt(1, cid);
-        ResultSet name_set = _customer_name_statement.executeQuery();
-        String name;
-        if (name_set.next())
-        {
-            name = name_set.getString("fname") + " " +
-                name_set.getString("lname");
-        } else {
-            name = "customer not found";
-        }
-        name_set.close();
-        return name;
+        CustomerProfile profile = _ledger.profile(cid);
+        return profile == null ? "customer not found" : profile.getName();
+    }
 
+    public CustomerProfile helper_customer_profile(int cid) throws Exception {
+        /* name, plan limit and open rentals of cid; null if there is no such customer */
+        return _ledger.profile(cid);
     }
 
     public boolean helper_check_plan(int plan_id) throws Exception {
-        /* is plan_id a valid plan id ?  you have to figure out */
-        _valid_plan_statement.clearParameters();
-        _valid_plan_statement.setInt(1, plan_id);
-        ResultSet valid_set = _valid_plan_statement.executeQuery();
-        boolean valid = valid_set.next();
-        valid_set.close();
-        return valid;
+        /* is plan_id a valid plan id ? */
+        return _ledger.plan(plan_id) != null;
+    }
+
+    public static void invalidate_plans() {
+        /* call after changing RentalPlans so the next lookup reloads it */
+        PostgresLedger.invalidate_plans();
     }
 
     public boolean helper_check_movie(int mid) throws Exception {
         /* is mid a valid movie id ? you have to figure out  */
-        _valid_movie_statement.clearParameters();
-        _valid_movie_statement.setInt(1, mid);
-        ResultSet valid_set = _valid_movie_statement.executeQuery();
-        boolean valid = valid_set.next();
-        valid_set.close();
-        return valid;
+        return _catalog.exists(mid);
     }
 
     private int helper_who_has_this_movie(int mid) throws Exception {
         /* find the customer id (cid) of whoever currently rents the movie mid; return -1 if none */
-        _rents_movie_statement.clearParameters();
-        _rents_movie_statement.setInt(1, mid);
-        ResultSet rents_set = _rents_movie_statement.executeQuery();
-        int cid;
-        if (rents_set.next())
-        {
-            cid = rents_set.getInt("cid");
-        } else {
-            cid = -1;
+        return _ledger.renters(new int[] { mid })[0];
+    }
+
+    public static ExecutorService task_executor() {
+        /* a virtual thread per task on JDK 21 and later; looked up reflectively so the tree
+           still builds and runs on JDK 17, where a cached pool of daemon threads stands in */
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool(task -> {
+                Thread thread = new Thread(task);
+                thread.setDaemon(true);
+                return thread;
+            });
         }
-        rents_set.close();
-        return cid;
     }
 
     /**********************************************************/
     /* login transaction: invoked only once, when the app is started  */
     public int transaction_login(String name, String password) throws Exception {
         /* authenticates the user, and returns the user id, or -1 if authentication fails */
-
-        
-        int cid;
-        _begin_transaction_read_only_statement.executeUpdate();
-        _customer_login_statement.clearParameters();
-        _customer_login_statement.setString(1,name);
-        _customer_login_statement.setString(2,password);
-                
-        ResultSet cid_set = _customer_login_statement.executeQuery();
-        
-        if (cid_set.next()) cid = cid_set.getInt(1);
-        else cid = -1;
-        _commit_transaction_statement.executeUpdate();
-        return(cid);         
+        long metrics_start = Metrics.start();
+        try {
+            return _ledger.login(name, password);
+        } finally {
+            Metrics.transaction("transaction_login", metrics_start);
+        }
     }
 
     public void transaction_personal_data(int cid) throws Exception {
         /* print the customer's personal data: name, and plan number */
-        int remainingRentals = helper_compute_remaining_rentals(cid);    
-        String customer_name = helper_compute_customer_name(cid);
-        System.out.println("Customer "+customer_name);
-        System.out.println("You have "+remainingRentals+" available movies for rent");
+        long metrics_start = Metrics.start();
+        try {
+            /* served from the cached profile, so an idle prompt costs no query */
+            CustomerProfile profile = helper_customer_profile(cid);
+            int remainingRentals;
+            String customer_name;
+            if (profile != null) {
+                remainingRentals = profile.remaining();
+                customer_name = profile.getName();
+            } else {
+                remainingRentals = helper_compute_remaining_rentals(cid);
+                customer_name = helper_compute_customer_name(cid);
+            }
+            _out.println("Customer "+customer_name);
+            _out.println("You have "+remainingRentals+" available movies for rent");
+        } finally {
+            Metrics.transaction("transaction_personal_data", metrics_start);
+        }
     }
 
 
     /**********************************************************/
     /* main functions in this application: */
 
+    private MovieSink helper_status(int cid, MovieSink sink) {
+        /* the catalog hands over chunks without a status; one ledger lookup sets the
+           availability of a whole chunk before it is passed on */
+        return movies -> {
+            helper_chunk_status(cid, movies);
+            sink.accept(movies);
+        };
+    }
+
+    private void helper_chunk_status(int cid, List<MovieHit> movies) throws Exception {
+        int[] mids = new int[movies.size()];
+        for (int i = 0; i < mids.length; i++)
+            mids[i] = movies.get(i).getMid();
+        int[] renters = _ledger.renters(mids);
+        for (int i = 0; i < mids.length; i++)
+            movies.get(i).setStatus(MovieHit.Status.of(renters[i], cid));
+    }
+
+    public List<MovieHit> search_movies(int cid, String movie_title) throws Exception {
+        /* all matches of search_movies(cid, movie_title, sink) in one list */
+        List<MovieHit> movies = new ArrayList<MovieHit>();
+        search_movies(cid, movie_title, movies::addAll);
+        return movies;
+    }
+
+    public void search_movies(int cid, String movie_title, MovieSink sink) throws Exception {
+        /* searches for movies with matching titles: SELECT * FROM movie WHERE name LIKE movie_title,
+           with their directors, actors, and the availability status; each hydrated chunk is handed
+           to sink before the next one is read, so memory stays flat when fetchSize is set */
+        _catalog.search(movie_title, true, hydrationChunkSize, helper_status(cid, sink));
+    }
+
+    public List<MovieHit> search_page(int cid, String movie_title, int after_mid, int limit) throws Exception {
+        /* up to limit matches with an id greater than after_mid; pass the last
+           mid of a page to get the next one, and Integer.MIN_VALUE for the first.
+           Only search pages this way: fastsearch keeps streaming its whole result
+           in hydrationChunkSize chunks and has no keyset paging */
+        List<MovieHit> movies = _catalog.page(movie_title, after_mid, limit, hydrationChunkSize);
+        helper_chunk_status(cid, movies);
+        return movies;
+    }
+
     public void transaction_search(int cid, String movie_title)
             throws Exception {
-        /* searches for movies with matching titles: SELECT * FROM movie WHERE name LIKE movie_title */
-        /* prints the movies, directors, actors, and the availability status:
-           AVAILABLE, or UNAVAILABLE, or YOU CURRENTLY RENT IT */
-
-        /* Start the timer*/
-        long startTime = System.currentTimeMillis();
-
-        /* set the first (and single) '?' parameter */
-        _search_statement.clearParameters();
-        _search_statement.setString(1, '%' + movie_title + '%');
-
-        ResultSet movie_set = _search_statement.executeQuery();
-        while (movie_set.next()) {
-            int mid = movie_set.getInt(1);
-            System.out.println("ID: " + mid + " NAME: "
-                    + movie_set.getString(2) + " YEAR: "
-                    + movie_set.getString(3));
-            /* do a dependent join with directors */
-            _director_mid_statement.clearParameters();
-            _director_mid_statement.setInt(1, mid);
-            ResultSet director_set = _director_mid_statement.executeQuery();
-            while (director_set.next()) {
-                System.out.println("\t\tDirector: " + director_set.getString(3)
-                        + " " + director_set.getString(2));
-            }
-            director_set.close();
-            
-            /* now you need to retrieve the actors, in the same manner */
-            _actor_mid_statement.clearParameters();
-            _actor_mid_statement.setInt(1, mid);
-            ResultSet actor_set = _actor_mid_statement.executeQuery();
-            while (actor_set.next()) {
-                System.out.println("\t\tActor: "
-                        + actor_set.getString("fname") + " "
-                        + actor_set.getString("lname"));
-            }
-            actor_set.close();
-            
-            /* then you have to find the status: of "AVAILABLE" "YOU HAVE IT", "UNAVAILABLE" */
-            int hasMovie = helper_who_has_this_movie(mid);
-            if (hasMovie == -1)
-                System.out.println("\t\tAVAILABLE");
-            else if (hasMovie == cid)
-                System.out.println("\t\tYOU HAVE IT");
-            else
-                System.out.println("\t\tUNAVAILABLE");
+        long metrics_start = Metrics.start();
+        try {
+            /* prints the movies, directors, actors, and the availability status:
+               AVAILABLE, or UNAVAILABLE, or YOU CURRENTLY RENT IT */
+
+            /* Start the timer*/
+            long startTime = System.currentTimeMillis();
+
+            search_movies(cid, movie_title, new ResultWriter(_out)::writeMovies);
+            _out.println();
+
+            /* End the timer*/
+            long endTime = System.currentTimeMillis();
+
+            _out.println("Search completed in " + ((endTime-startTime)/1000.00) + " seconds");
+
+            _out.println();
+        } finally {
+            Metrics.transaction("transaction_search", metrics_start);
         }
-        System.out.println();
-        
-        /* End the timer*/
-        long endTime = System.currentTimeMillis();
-        
-        System.out.println("Search completed in " + ((endTime-startTime)/1000.00) + " seconds");
-        
-        System.out.println();
     }
 
-    
+
     public void transaction_choose_plan(int cid, int pid) throws Exception {
-                
-        /* check how many movies the customer is renting */
-        _rentals_customer_statement.clearParameters();
-        _rentals_customer_statement.setInt(1, cid);
-        ResultSet rental_set = _rentals_customer_statement.executeQuery();
-        
-        rental_set.next();
-        int c1 = rental_set.getInt(1);
-        rental_set.close();
-        
-        /* check how many rentals the requested plan allows */
-        _plans_maxrentals_statement.clearParameters();
-        _plans_maxrentals_statement.setInt(1, pid);
-        ResultSet newmax_set = _plans_maxrentals_statement.executeQuery();
-        
-        newmax_set.next();
-        int c2 = newmax_set.getInt(1);
-        newmax_set.close();
-        
-        
-        int remaining = c2 - c1;
-        if (remaining < 0) {
-            System.out.println("You cannot switch to this plan unless you return some movies.");
-        } else {
-            /* updates the customer's plan to pid */
-            _update_plan_statement.clearParameters();
-            _update_plan_statement.setInt(1, pid);
-            _update_plan_statement.setInt(2, cid);
-            _update_plan_statement.executeUpdate();
+        /* switch cid to plan pid, if it allows the movies cid is renting now */
+        long metrics_start = Metrics.start();
+        try {
+            if (_ledger.plan(pid) == null) {
+                _out.println("Incorrect plan id " + pid);
+            } else if (!_ledger.choosePlan(cid, pid)) {
+                Metrics.rollback("transaction_choose_plan");
+                _out.println("You cannot switch to this plan unless you return some movies.");
+            }
+        } finally {
+            Metrics.transaction("transaction_choose_plan", metrics_start);
         }
     }
-    
-    
+
+
+
+    public List<RentalPlan> list_plans() throws Exception {
+        /* all available plans, by pid */
+        return _ledger.plans();
+    }
 
     public void transaction_list_plans() throws Exception {
-        /* print all available plans: SELECT * FROM plan */
-        ResultSet plans_set = _plans_list_statement.executeQuery();
-        while (plans_set.next())
-        {
-            System.out.println(plans_set.getInt("pid") + "\t" + String.format("%-17s",plans_set.getString("name")) + "\t" + 
-                    "max " + plans_set.getInt("max_movies") + " movies\t" + 
-                    "$" + feeFormat.format(plans_set.getDouble("fee")));
+        /* print all available plans */
+        long metrics_start = Metrics.start();
+        try {
+            new ResultWriter(_out).writePlans(list_plans());
+        } finally {
+            Metrics.transaction("transaction_list_plans", metrics_start);
         }
-        plans_set.close();
     }
-    
+
+    public List<RentedMovie> list_user_rentals(int cid) throws Exception {
+        /* all movies rented by the given user, by id: the mids come from the ledger,
+           and their names from the catalog in one lookup */
+        int[] mids = _ledger.rentals(cid);
+        String[] names = _catalog.names(mids);
+        List<RentedMovie> rentals = new ArrayList<RentedMovie>(mids.length);
+        for (int i = 0; i < mids.length; i++)
+            rentals.add(new RentedMovie(mids[i], names[i]));
+        return rentals;
+    }
+
     public void transaction_list_user_rentals(int cid) throws Exception {
         /* print all movies rented by the current user*/
-        System.out.println("You are currently renting the following movies:");
-        _rentals_mid_list_statement.clearParameters();
-        _rentals_mid_list_statement.setInt(1, cid);
-        ResultSet rented_set = _rentals_mid_list_statement.executeQuery();
-        while (rented_set.next())
-        {
-            int mid = rented_set.getInt("mid");
-            
-            _movie_name_statement.clearParameters();
-            _movie_name_statement.setInt(1, mid);
-            ResultSet movieName = _movie_name_statement.executeQuery();
-            movieName.next();
-            System.out.println(mid + "\t" + movieName.getString("name"));
+        long metrics_start = Metrics.start();
+        try {
+            new ResultWriter(_out).writeRentals(list_user_rentals(cid));
+        } finally {
+            Metrics.transaction("transaction_list_user_rentals", metrics_start);
         }
     }
 
     public void transaction_rent(int cid, int mid) throws Exception {
-        /* rent the movie mid to the customer cid */
-        
-        _begin_transaction_read_write_statement.executeUpdate();
-        
-        if(!helper_check_movie(mid)){
-            _rollback_transaction_statement.executeUpdate();
-            System.out.println("The movie you requested does not exist.");
-            return;
+        /* rent the movie mid to the customer cid: the ledger checks and rents in one step,
+           and a refusal is explained from what it holds now */
+        long metrics_start = Metrics.start();
+        try {
+            if (!helper_check_movie(mid)) {
+                _out.println("The movie you requested does not exist.");
+                return;
+            }
+            if (_ledger.rent(cid, new int[] { mid }))
+                return;
+            Metrics.rollback("transaction_rent");
+            int remaining = helper_compute_remaining_rentals(cid);
+            int hasMovie = helper_who_has_this_movie(mid);
+            if (remaining <= 0)
+            {
+                _out.println("You cannot rent more movies with your current plan.");
+            } else if (hasMovie == cid)
+            {
+                _out.println("You already rent this movie.");
+            } else {
+                _out.println("Somebody else is already renting this movie.");
+            }
+        } finally {
+            Metrics.transaction("transaction_rent", metrics_start);
         }
-        
-        int remaining = helper_compute_remaining_rentals(cid);
-        if (remaining <= 0)
-        {
-            _rollback_transaction_statement.executeUpdate();
-            System.out.println("You cannot rent more movies with your current plan.");
-            return;
+    }
+
+    public void transaction_return(int cid, int mid) throws Exception {
+        /* return the movie mid by the customer cid */
+        long metrics_start = Metrics.start();
+        try {
+            if (_ledger.giveBack(cid, new int[] { mid }))
+                return;
+            Metrics.rollback("transaction_return");
+            _out.println("You are not currently renting this movie.");
+        } finally {
+            Metrics.transaction("transaction_return", metrics_start);
         }
-        
-        int hasMovie = helper_who_has_this_movie(mid);
-        if (hasMovie == -1)
-        {
-            _rent_statement.clearParameters();
-            _rent_statement.setInt(1, mid);
-            _rent_statement.setInt(2, cid);
-            _rent_statement.executeUpdate();
-            
-            _commit_transaction_statement.executeUpdate();
-            return;
+    }
+
+    public void transaction_rent_batch(int cid, int[] mids) throws Exception {
+        /* rent all of mids to cid in one step, or none of them */
+        long metrics_start = Metrics.start();
+        try {
+            if (helper_has_repeats(mids))
+                return;
+            for (int mid : mids) {
+                if (!helper_check_movie(mid)) {
+                    _out.println("The movie " + mid + " does not exist.");
+                    return;
+                }
+            }
+            if (_ledger.rent(cid, mids))
+                return;
+            Metrics.rollback("transaction_rent_batch");
+            int remaining = helper_compute_remaining_rentals(cid);
+            if (remaining < mids.length) {
+                _out.println("You can only rent " + Math.max(0, remaining) + " more movies with your current plan.");
+                return;
+            }
+            int[] renters = _ledger.renters(mids);
+            for (int i = 0; i < mids.length; i++) {
+                if (renters[i] == cid)
+                    _out.println("You already rent the movie " + mids[i] + ".");
+                else if (renters[i] != -1)
+                    _out.println("Somebody else is already renting the movie " + mids[i] + ".");
+            }
+        } finally {
+            Metrics.transaction("transaction_rent_batch", metrics_start);
         }
-        _rollback_transaction_statement.executeUpdate();
-        
-        if (hasMovie == cid)
-        {
-            System.out.println("You already rent this movie.");
-        } else {
-            System.out.println("Somebody else is already renting this movie.");
+    }
+
+    public void transaction_return_batch(int cid, int[] mids) throws Exception {
+        /* return all of mids in one step, or none of them if cid does not rent one */
+        long metrics_start = Metrics.start();
+        try {
+            if (helper_has_repeats(mids))
+                return;
+            if (_ledger.giveBack(cid, mids))
+                return;
+            Metrics.rollback("transaction_return_batch");
+            int[] renters = _ledger.renters(mids);
+            for (int i = 0; i < mids.length; i++) {
+                if (renters[i] != cid)
+                    _out.println("You are not currently renting the movie " + mids[i] + ".");
+            }
+        } finally {
+            Metrics.transaction("transaction_return_batch", metrics_start);
         }
     }
 
-    public void transaction_return(int cid, int mid) throws Exception {
-        /* return the movie mid by the customer cid */
-        
-        _begin_transaction_read_write_statement.executeUpdate();
-        
-        int hasMovie = helper_who_has_this_movie(mid);
-        if (hasMovie == cid)
-        {
-            _return_statement.clearParameters();
-            _return_statement.setInt(1, cid);
-            _return_statement.setInt(2, mid);
-            _return_statement.executeUpdate();
-            
-            _commit_transaction_statement.executeUpdate();
-            return;
+    private boolean helper_has_repeats(int[] mids) {
+        /* a batch lists each movie once; say which one is repeated, if any */
+        for (int i = 0; i < mids.length; i++) {
+            for (int j = 0; j < i; j++) {
+                if (mids[j] == mids[i]) {
+                    _out.println("The movie " + mids[i] + " is listed more than once.");
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    public void transaction_return_all(int cid) throws Exception {
+        /* return every movie cid rents */
+        long metrics_start = Metrics.start();
+        try {
+            _out.println("Returned " + _ledger.returnAll(cid) + " movies.");
+        } finally {
+            Metrics.transaction("transaction_return_all", metrics_start);
         }
-        _rollback_transaction_statement.executeUpdate();
-        
-        System.out.println("You are not currently renting this movie.");
+    }
+
+    public List<MovieHit> fast_search_movies(int cid, String movie_title) throws Exception {
+        /* all matches of fast_search_movies(cid, movie_title, sink) in one list */
+        List<MovieHit> movies = new ArrayList<MovieHit>();
+        fast_search_movies(cid, movie_title, movies::addAll);
+        return movies;
+    }
+
+    public void fast_search_movies(int cid, String movie_title, MovieSink sink) throws Exception {
+        /* like search_movies, but lets the catalog use whatever it has to find them faster */
+        _catalog.fastSearch(movie_title, hydrationChunkSize, helper_status(cid, sink));
     }
 
     public void transaction_fast_search(int cid, String movie_title)
             throws Exception {
         /* like transaction_search, but pushes some of the join logic to the database */
-        
-        /* Start the timer*/
+        long metrics_start = Metrics.start();
+        try {
+            /* Start the timer*/
             long startTime = System.currentTimeMillis();
-        
-        /* Insert your code for fastsearch here */
-        
-        _search_statement.clearParameters();
-        _search_statement.setString(1, '%' + movie_title + '%');
-        ResultSet movie_set = _search_statement.executeQuery();
-
-        _director_fast_statement.clearParameters();
-        _director_fast_statement.setString(1, '%' + movie_title + '%');
-        ResultSet director_set = _director_fast_statement.executeQuery();
-
-        _actor_fast_statement.clearParameters();
-        _actor_fast_statement.setString(1, '%' + movie_title + '%');
-        ResultSet actor_set = _actor_fast_statement.executeQuery();
-
-        while (movie_set.next()){
-            int mid = movie_set.getInt(1);
-            System.out.println("ID: " + mid + " NAME: "
-                    + movie_set.getString(2) + " YEAR: "
-                    + movie_set.getString(3));
-        
-            while (director_set.next()){
-                if (director_set.getInt(1) == mid) {
-                    System.out.println("\t\tDirector: " + director_set.getString(4)
-                            + " " + director_set.getString(3));
-                }
-                else {
-                    break;
-                }
-            } 
 
-            while (actor_set.next()){
-                if (actor_set.getInt(1) == mid) {
-                    System.out.println("\t\tActor: " + actor_set.getString(4)
-                            + " " + actor_set.getString(3));
-                }
-                else {
-                    break;
-                } 
-            } 
-        }
-        movie_set.close();
-        director_set.close();
-        actor_set.close();
-        System.out.println();
-
-        
-        /* End of fastsearch code */
-        
-         /* End the timer*/
+            fast_search_movies(cid, movie_title, new ResultWriter(_out)::writeMovies);
+            _out.println();
+
+            /* End the timer*/
             long endTime = System.currentTimeMillis();
 
-            System.out.println("Search completed in " + ((endTime-startTime)/1000.00) + " seconds");
+            _out.println("Search completed in " + ((endTime-startTime)/1000.00) + " seconds");
 
-            System.out.println();
+            _out.println();
+        } finally {
+            Metrics.transaction("transaction_fast_search", metrics_start);
+        }
     }
 
 }
@@ -0,0 +1,157 @@
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of fixed-size records at the end of a file, after whatever
+ * the file holds before start
+ *
+ * A record is three ints followed by the CRC32 of their 12 bytes.  append()
+ * writes and fsyncs a group of records and, if that fails, cuts the file back
+ * to where the group began, so a later group never lands behind a partial
+ * one.  read() returns the records up to the first torn or corrupt one, which
+ * is where a crash in the middle of an append leaves the end of the log, and
+ * cuts that tail off.  A log that owns its file can also drop() records from
+ * the front, by writing the rest to a new file that then replaces it.
+ */
+public class RecordLog {
+
+    public static final int RECORD = 16;
+
+    /* records handed to the channel per write */
+    private static final int CHUNK = 1024;
+
+    private final File _path;
+    private FileChannel _channel;
+    private final long _start;
+    private long _end;
+
+    public RecordLog(FileChannel channel, long start) {
+        _path = null;
+        _channel = channel;
+        _start = start;
+        _end = start;
+    }
+
+    /* a log that is the whole of path */
+    public RecordLog(File path) throws Exception {
+        _path = path;
+        _channel = new RandomAccessFile(path, "rw").getChannel();
+        _start = 0;
+        _end = 0;
+    }
+
+    /* the valid records from start on; appends go after the last of them */
+    public synchronized List<int[]> read() throws Exception {
+        List<int[]> records = new ArrayList<int[]>();
+        ByteBuffer buffer = ByteBuffer.allocate(RECORD);
+        long position = _start;
+        while (true) {
+            buffer.clear();
+            while (buffer.hasRemaining() && _channel.read(buffer, position + buffer.position()) > 0) {
+            }
+            if (buffer.hasRemaining())
+                break;
+            buffer.flip();
+            int[] record = { buffer.getInt(), buffer.getInt(), buffer.getInt() };
+            if (buffer.getInt() != checksum(record))
+                break;
+            records.add(record);
+            position += RECORD;
+        }
+        _end = position;
+        if (_channel.size() > _end)
+            _channel.truncate(_end);
+        return records;
+    }
+
+    /* writes records after the last ones and waits for them to be on disk */
+    public synchronized void append(List<int[]> records) throws Exception {
+        long end = _end;
+        try {
+            ByteBuffer buffer = ByteBuffer.allocate(RECORD * Math.min(CHUNK, records.size()));
+            for (int i = 0; i < records.size(); i++) {
+                if (!buffer.hasRemaining())
+                    end = drain(buffer, end);
+                put(buffer, records.get(i));
+            }
+            end = drain(buffer, end);
+            _channel.force(false);
+        } catch (Exception e) {
+            try {
+                _channel.truncate(_end);
+            } catch (Exception ignored) {
+                /* the part that did reach the file ends in a torn record or fails its CRC */
+            }
+            throw e;
+        }
+        _end = end;
+    }
+
+    /* bytes of records after start */
+    public synchronized long size() {
+        return _end - _start;
+    }
+
+    /* drops every record */
+    public synchronized void clear() throws Exception {
+        _channel.truncate(_start);
+        _end = _start;
+    }
+
+    /* drops the first count records; a crash leaves either the old file or the new one */
+    public synchronized void drop(long count) throws Exception {
+        if (_path == null)
+            throw new IllegalStateException("record log does not own its file");
+        long cut = _start + Math.min(count * RECORD, _end - _start);
+        File temp = new File(_path.getPath() + ".tmp");
+        FileChannel channel = new RandomAccessFile(temp, "rw").getChannel();
+        try {
+            channel.truncate(0);
+            long position = 0;
+            while (position < _start)
+                position += _channel.transferTo(position, _start - position, channel);
+            while (position < _start + _end - cut)
+                position += _channel.transferTo(cut + position - _start, _start + _end - cut - position, channel);
+            channel.force(true);
+            Files.move(temp.toPath(), _path.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (Exception e) {
+            channel.close();
+            temp.delete();
+            throw e;
+        }
+        /* the old channel still reads the replaced file; appends go to the new one */
+        _channel.close();
+        _channel = channel;
+        _end -= cut - _start;
+    }
+
+    public synchronized void close() throws Exception {
+        _channel.close();
+    }
+
+    private long drain(ByteBuffer buffer, long position) throws Exception {
+        buffer.flip();
+        while (buffer.hasRemaining())
+            position += _channel.write(buffer, position);
+        buffer.clear();
+        return position;
+    }
+
+    private static void put(ByteBuffer buffer, int[] record) {
+        buffer.putInt(record[0]).putInt(record[1]).putInt(record[2]).putInt(checksum(record));
+    }
+
+    private static int checksum(int[] record) {
+        CRC32 crc = new CRC32();
+        ByteBuffer bytes = ByteBuffer.allocate(12).putInt(record[0]).putInt(record[1]).putInt(record[2]);
+        crc.update(bytes.array());
+        return (int) crc.getValue();
+    }
+}
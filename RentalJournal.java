@@ -0,0 +1,495 @@
+import java.io.File;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Write-behind journal of accepted rents and returns
+ *
+ * An accepted operation is appended to a local RecordLog and the caller waits
+ * only for that file to be fsynced; one writer thread fsyncs everything
+ * appended since its last write at once, so concurrent customers share a
+ * sync.  A flusher thread then applies the operations to movierentals in
+ * batches, empties the file once it has caught up and, when it never quite
+ * catches up, drops the applied records from the front every
+ * COMPACT_RECORDS, so the file holds about what is still unapplied.  Until an operation
+ * is applied, renter() and openDelta() report it, so reads in this process
+ * see it on top of what movierentals says.
+ *
+ * Checks that must not race with other operations (quota, availability)
+ * are made holding lock() on the customer and movies involved, and between
+ * readStamp() and validate(), which fails if the flusher committed in the
+ * meantime and so moved operations from the overlay into movierentals.  No
+ * lock is held across a database round trip except the admission stripes,
+ * and they are ReentrantLocks, so a waiting virtual thread only parks.
+ *
+ * On open, whatever the file still holds from a previous run is applied
+ * first; applying is idempotent, so operations that reached the database
+ * before a crash are harmless to replay.  If the flusher fails to apply a
+ * batch APPLY_ATTEMPTS times in a row it gives up: the operations stay in
+ * the file for the next open, and every later call, reads of the overlay
+ * included, fails with the cause.
+ */
+public class RentalJournal {
+
+    public static final int RENT = 1;
+    public static final int RETURN = 2;
+
+    /* records are op, mid, cid */
+
+    /* consecutive failed attempts at applying a batch, a second apart, before giving up */
+    private static final int APPLY_ATTEMPTS = 30;
+
+    /* applied records at the front of the file that make it worth rewriting */
+    private static final int COMPACT_RECORDS = 65536;
+
+    private static final int STRIPES = 64;
+
+    private static final String _rent_sql = "INSERT INTO movierentals SELECT ?, ?, 'open' " +
+        "WHERE NOT EXISTS (SELECT 1 FROM movierentals WHERE mid = ? AND cid = ? AND status = 'open')";
+    private static final String _return_sql = "UPDATE movierentals " +
+        "SET status = 'closed' WHERE cid = ? AND mid = ? AND status = 'open'";
+
+    private final RecordLog _log;
+    private final Connection _customer_db;
+    private final PreparedStatement _rent_statement;
+    private final PreparedStatement _return_statement;
+
+    private final ReentrantLock[] _customer_locks = new ReentrantLock[STRIPES];
+    private final ReentrantLock[] _movie_locks = new ReentrantLock[STRIPES];
+
+    /* everything below is guarded by _lock, and _changed is signalled when any of it changes */
+    private final ReentrantLock _lock = new ReentrantLock();
+    private final Condition _changed = _lock.newCondition();
+    private final List<int[]> _unwritten = new ArrayList<int[]>();
+    private final List<int[]> _unapplied = new ArrayList<int[]>();
+    private long _enqueued;
+    private long _durable;
+    private long _applied;
+    private boolean _closed;
+    private Exception _failure;
+
+    /* the flusher is committing; _epoch counts the commits it has finished or abandoned */
+    private boolean _committing;
+    private long _epoch;
+
+    /* overlay of unapplied operations: mid -> latest {seq, renter or -1, cid}, cid -> open rentals added */
+    private final Map<Integer, long[]> _renter = new HashMap<Integer, long[]>();
+    private final Map<Integer, Integer> _delta = new HashMap<Integer, Integer>();
+
+    /* applied records still at the front of the file; only the flusher uses it */
+    private long _logged_applied;
+
+    private final Thread _writer;
+    private final Thread _flusher;
+
+    private RentalJournal(File path, Connection customer_db) throws Exception {
+        _log = new RecordLog(path);
+        _customer_db = customer_db;
+        _customer_db.setAutoCommit(false);
+        _rent_statement = Metrics.prepare(customer_db, "rental_journal_rent", _rent_sql);
+        _return_statement = Metrics.prepare(customer_db, "rental_journal_return", _return_sql);
+        for (int i = 0; i < STRIPES; i++) {
+            _customer_locks[i] = new ReentrantLock();
+            _movie_locks[i] = new ReentrantLock();
+        }
+        _writer = new Thread(this::write, "rental-journal-writer");
+        _flusher = new Thread(this::flush, "rental-journal-flusher");
+        _writer.setDaemon(true);
+        _flusher.setDaemon(true);
+    }
+
+    /* replays what path holds into movierentals, then starts the writer and flusher;
+       customer_db becomes the flusher's own connection */
+    public static RentalJournal open(File path, Connection customer_db) throws Exception {
+        RentalJournal journal = new RentalJournal(path, customer_db);
+        journal.replay();
+        journal._writer.start();
+        journal._flusher.start();
+        return journal;
+    }
+
+    /**********************************************************/
+    /* operations */
+
+    /* locks cid and the stripes of mids (only cid when mids is null); an operation on them
+       is checked and enqueued, or they are changed straight in movierentals, while it is held */
+    public Guard lock(int cid, int[] mids) {
+        boolean[] stripes = new boolean[STRIPES];
+        if (mids != null) {
+            for (int mid : mids)
+                stripes[stripe(mid)] = true;
+        }
+        /* customer lock first, then movie stripes in ascending order: no lock cycles */
+        List<ReentrantLock> locks = new ArrayList<ReentrantLock>();
+        locks.add(_customer_locks[stripe(cid)]);
+        for (int i = 0; i < STRIPES; i++) {
+            if (stripes[i])
+                locks.add(_movie_locks[i]);
+        }
+        for (ReentrantLock lock : locks)
+            lock.lock();
+        return new Guard(locks);
+    }
+
+    /* the locks taken by lock() */
+    public static class Guard {
+        private final List<ReentrantLock> _locks;
+
+        private Guard(List<ReentrantLock> locks) {
+            _locks = locks;
+        }
+
+        public void unlock() {
+            for (int i = _locks.size() - 1; i >= 0; i--)
+                _locks.get(i).unlock();
+        }
+    }
+
+    /* a stamp for validate(), once no commit is in progress */
+    public long readStamp() throws Exception {
+        _lock.lock();
+        try {
+            while (_committing) {
+                checkFailure();
+                _changed.await();
+            }
+            return _epoch;
+        } finally {
+            _lock.unlock();
+        }
+    }
+
+    /* true if movierentals and the overlay were consistent with each other all the time
+       since readStamp() returned stamp, that is the flusher committed nothing meanwhile */
+    public boolean validate(long stamp) {
+        _lock.lock();
+        try {
+            return !_committing && _epoch == stamp;
+        } finally {
+            _lock.unlock();
+        }
+    }
+
+    /* queue an operation and add it to the overlay; returns its sequence number for awaitDurable */
+    public long enqueue(int op, int mid, int cid) throws Exception {
+        _lock.lock();
+        try {
+            checkFailure();
+            if (_closed)
+                throw new IllegalStateException("rental journal is closed");
+            long seq = ++_enqueued;
+            _unwritten.add(new int[] { op, mid, cid });
+            _renter.put(mid, new long[] { seq, op == RENT ? cid : -1, cid });
+            _delta.merge(cid, op == RENT ? 1 : -1, Integer::sum);
+            _changed.signalAll();
+            return seq;
+        } finally {
+            _lock.unlock();
+        }
+    }
+
+    /* blocks until operation seq is on disk */
+    public void awaitDurable(long seq) throws Exception {
+        _lock.lock();
+        try {
+            while (_durable < seq) {
+                checkFailure();
+                if (_closed)
+                    throw new IllegalStateException("rental journal closed before the operation was written");
+                _changed.await();
+            }
+        } finally {
+            _lock.unlock();
+        }
+    }
+
+    /* blocks until every operation queued so far is in movierentals */
+    public void awaitApplied() throws Exception {
+        _lock.lock();
+        try {
+            long target = _enqueued;
+            while (_applied < target) {
+                checkFailure();
+                if (_closed)
+                    return;
+                _changed.await();
+            }
+        } finally {
+            _lock.unlock();
+        }
+    }
+
+    /* the renter of mid according to unapplied operations: null if there are none for mid,
+       -1 if the last one returned it; like every read of the overlay, this fails once the
+       flusher has given up, since the operations in it may then never reach movierentals */
+    public Integer renter(int mid) {
+        _lock.lock();
+        try {
+            checkFailure();
+            long[] pending = _renter.get(mid);
+            return pending == null ? null : (int) pending[1];
+        } finally {
+            _lock.unlock();
+        }
+    }
+
+    /* open rentals of cid that movierentals does not show yet (negative for returns) */
+    public int openDelta(int cid) {
+        _lock.lock();
+        try {
+            checkFailure();
+            return _delta.getOrDefault(cid, 0);
+        } finally {
+            _lock.unlock();
+        }
+    }
+
+    /* movies whose last unapplied operation is a rent by cid (rented) or a return by cid */
+    public List<Integer> pending(int cid, boolean rented) {
+        _lock.lock();
+        try {
+            checkFailure();
+            List<Integer> mids = new ArrayList<Integer>();
+            for (Map.Entry<Integer, long[]> entry : _renter.entrySet()) {
+                long[] last = entry.getValue();
+                if (last[2] == cid && (rented ? last[1] == cid : last[1] == -1))
+                    mids.add(entry.getKey());
+            }
+            return mids;
+        } finally {
+            _lock.unlock();
+        }
+    }
+
+    public void close() throws Exception {
+        _lock.lock();
+        try {
+            /* after a failure whatever is left stays in the file for the next open */
+            while (_applied < _enqueued && _failure == null)
+                _changed.await();
+            _closed = true;
+            _changed.signalAll();
+        } finally {
+            _lock.unlock();
+        }
+        _writer.join();
+        _flusher.join();
+        _log.close();
+        _customer_db.close();
+    }
+
+    /**********************************************************/
+    /* background threads */
+
+    private void write() {
+        /* group commit: write and fsync everything queued since the last round */
+        while (true) {
+            List<int[]> batch;
+            long last;
+            _lock.lock();
+            try {
+                while (_unwritten.isEmpty() && !_closed)
+                    awaitQuietly();
+                if (_unwritten.isEmpty())
+                    return;
+                batch = new ArrayList<int[]>(_unwritten);
+                _unwritten.clear();
+                last = _durable + batch.size();
+            } finally {
+                _lock.unlock();
+            }
+            try {
+                _log.append(batch);
+            } catch (Exception e) {
+                /* without the journal on disk nothing more can be accepted: waiting
+                   callers fail, and so does every later enqueue */
+                System.err.println("rental journal: could not write " + batch.size()
+                        + " operations, refusing any more: " + e);
+                fail(e);
+                return;
+            }
+            _lock.lock();
+            try {
+                _unapplied.addAll(batch);
+                _durable = last;
+                _changed.signalAll();
+            } finally {
+                _lock.unlock();
+            }
+        }
+    }
+
+    private void flush() {
+        /* apply durable operations to movierentals, a batch per transaction */
+        int failures = 0;
+        while (true) {
+            List<int[]> batch;
+            _lock.lock();
+            try {
+                while (_unapplied.isEmpty() && !_closed)
+                    awaitQuietly();
+                if (_unapplied.isEmpty())
+                    return;
+                batch = new ArrayList<int[]>(_unapplied);
+            } finally {
+                _lock.unlock();
+            }
+            long metrics_start = Metrics.start();
+            try {
+                apply(batch);
+                committing(true);
+                _customer_db.commit();
+            } catch (Exception e) {
+                /* the database is unreachable or refused the batch; keep it and retry,
+                   unless that has now failed APPLY_ATTEMPTS times in a row */
+                failures++;
+                Metrics.rollback("rental_journal_flush");
+                System.err.println("rental journal: could not apply " + batch.size() + " operations (attempt "
+                        + failures + " of " + APPLY_ATTEMPTS + "): " + e);
+                try {
+                    _customer_db.rollback();
+                } catch (Exception ignored) {
+                }
+                /* a failed commit may still have gone through, so readers start over either way */
+                committing(false);
+                if (failures >= APPLY_ATTEMPTS) {
+                    System.err.println("rental journal: giving up; the operations stay in the journal"
+                            + " file and are applied when it is next opened");
+                    fail(e);
+                    return;
+                }
+                try {
+                    Thread.sleep(1000);
+                } catch (InterruptedException interrupted) {
+                    fail(interrupted);
+                    return;
+                }
+                continue;
+            }
+            failures = 0;
+            _lock.lock();
+            try {
+                long first = _applied + 1;
+                for (int i = 0; i < batch.size(); i++) {
+                    int[] record = batch.get(i);
+                    long[] last = _renter.get(record[1]);
+                    if (last != null && last[0] <= first + i)
+                        _renter.remove(record[1]);
+                    _delta.merge(record[2], record[0] == RENT ? -1 : 1, Integer::sum);
+                    _delta.remove(record[2], 0);
+                }
+                _unapplied.subList(0, batch.size()).clear();
+                _applied += batch.size();
+                _committing = false;
+                _epoch++;
+                _logged_applied += batch.size();
+                /* caught up with nothing in flight: the file can start over */
+                if (_applied == _enqueued) {
+                    _log.clear();
+                    _logged_applied = 0;
+                }
+                _changed.signalAll();
+            } catch (Exception e) {
+                System.err.println("rental journal: could not truncate the journal file: " + e);
+            } finally {
+                _lock.unlock();
+            }
+            /* still behind: the applied records are a prefix of the file, so drop them
+               without holding up enqueue(); the writer only ever appends after them */
+            if (_logged_applied >= COMPACT_RECORDS) {
+                try {
+                    _log.drop(_logged_applied);
+                    _logged_applied = 0;
+                } catch (Exception e) {
+                    System.err.println("rental journal: could not compact the journal file: " + e);
+                }
+            }
+            Metrics.transaction("rental_journal_flush", metrics_start);
+        }
+    }
+
+    private void replay() throws Exception {
+        /* apply the valid records left by a previous run, stopping at a torn tail */
+        List<int[]> records = _log.read();
+        if (!records.isEmpty()) {
+            apply(records);
+            _customer_db.commit();
+        }
+        _log.clear();
+    }
+
+    private void apply(List<int[]> records) throws Exception {
+        /* runs of the same operation go in one JDBC batch; the runs keep their order */
+        int i = 0;
+        while (i < records.size()) {
+            int op = records.get(i)[0];
+            PreparedStatement statement = op == RENT ? _rent_statement : _return_statement;
+            for (; i < records.size() && records.get(i)[0] == op; i++) {
+                int[] record = records.get(i);
+                if (op == RENT) {
+                    statement.setInt(1, record[1]);
+                    statement.setInt(2, record[2]);
+                    statement.setInt(3, record[1]);
+                    statement.setInt(4, record[2]);
+                } else {
+                    statement.setInt(1, record[2]);
+                    statement.setInt(2, record[1]);
+                }
+                statement.addBatch();
+            }
+            statement.executeBatch();
+        }
+    }
+
+    /**********************************************************/
+
+    private void committing(boolean committing) {
+        _lock.lock();
+        try {
+            _committing = committing;
+            if (!committing)
+                _epoch++;
+            _changed.signalAll();
+        } finally {
+            _lock.unlock();
+        }
+    }
+
+    private void fail(Exception e) {
+        _lock.lock();
+        try {
+            if (_failure == null)
+                _failure = e;
+            _closed = true;
+            _changed.signalAll();
+        } finally {
+            _lock.unlock();
+        }
+    }
+
+    private void checkFailure() {
+        /* called holding _lock */
+        if (_failure != null)
+            throw new IllegalStateException("rental journal stopped: " + _failure, _failure);
+    }
+
+    private void awaitQuietly() {
+        /* called holding _lock */
+        try {
+            _changed.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static int stripe(int id) {
+        int h = id * 0x9E3779B1;
+        return (h ^ (h >>> 16)) & (STRIPES - 1);
+    }
+}
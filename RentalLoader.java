@@ -0,0 +1,245 @@
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyManager;
+
+/**
+ * Bulk loader for rental and return events synced from the stores
+ *
+ *   java -Ddbconn.config=dbconn.config RentalLoader EVENTS [CHUNK]
+ *
+ * EVENTS is a CSV file of "cid,mid,rent|return" lines (a header line is
+ * skipped) or, when its first character is '{', NDJSON with one
+ * {"cid": .., "mid": .., "action": "rent"|"return"} object per line.
+ *
+ * Plan limits and open rentals are read once; every event is checked
+ * against that in-memory state, in file order, instead of in its own
+ * serializable transaction.  Accepted rents go in with COPY and returns
+ * with one JDBC batch, committing every CHUNK events (loaderChunkEvents
+ * in dbconn.config).  Rejected events are printed to stderr.  Run it
+ * while the stores are not renting, since the state is not re-read.
+ */
+public class RentalLoader {
+
+    private static final Pattern JSON_FIELD =
+        Pattern.compile("\"(cid|mid|action)\"\\s*:\\s*(\"([^\"]*)\"|-?\\d+)");
+
+    private final Connection _customer_db;
+    private final CopyManager _copy;
+    private final PreparedStatement _return_statement;
+    private final int _chunk;
+
+    /* loaded state, updated as events are accepted */
+    private final BitSet _movies;
+    private final Map<Integer, Integer> _renter = new HashMap<Integer, Integer>();
+    private final Map<Integer, Integer> _open = new HashMap<Integer, Integer>();
+    private final Map<Integer, Integer> _max_movies = new HashMap<Integer, Integer>();
+
+    /* the current chunk: rents as COPY text, returns as a pending batch */
+    private final StringBuilder _rents = new StringBuilder();
+    private final BitSet _returned = new BitSet();
+    private int _pending;
+
+    private long _accepted;
+    private long _rejected;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.out.println("Usage: java RentalLoader EVENTS [CHUNK]");
+            System.exit(1);
+        }
+        Properties config = new Properties();
+        config.load(new FileInputStream(System.getProperty("dbconn.config", "dbconn.config")));
+        Class.forName(config.getProperty("postgreSQLDriver"));
+        String user = config.getProperty("postgreSQLUser");
+        String password = config.getProperty("postgreSQLPassword");
+        int chunk = args.length >= 2 ? Integer.parseInt(args[1])
+            : Integer.parseInt(config.getProperty("loaderChunkEvents", "10000").trim());
+
+        Connection imdb = DriverManager.getConnection(config.getProperty("imdbUrl"), user, password);
+        Connection customer = DriverManager.getConnection(config.getProperty("customerUrl"), user, password);
+        RentalLoader loader = new RentalLoader(imdb, customer, chunk);
+        imdb.close();
+
+        long start = System.nanoTime();
+        BufferedReader events = Files.newBufferedReader(Paths.get(args[0]), StandardCharsets.UTF_8);
+        loader.load(events);
+        events.close();
+        double seconds = (System.nanoTime() - start) / 1e9;
+        customer.close();
+
+        System.out.println(String.format("%d events applied, %d rejected in %.2f s (%.0f events/s)",
+                loader._accepted, loader._rejected, seconds,
+                (loader._accepted + loader._rejected) / Math.max(seconds, 1e-9)));
+    }
+
+    public RentalLoader(Connection imdb, Connection customer_db, int chunk) throws Exception {
+        _customer_db = customer_db;
+        _chunk = Math.max(1, chunk);
+        _copy = ((PGConnection) customer_db).getCopyAPI();
+
+        _movies = new BitSet();
+        PreparedStatement movie_statement = Metrics.prepare(imdb, "rental_loader_movies", "SELECT id FROM movie");
+        ResultSet movie_set = movie_statement.executeQuery();
+        while (movie_set.next()) {
+            if (movie_set.getInt(1) >= 0)
+                _movies.set(movie_set.getInt(1));
+        }
+        movie_set.close();
+        movie_statement.close();
+
+        PreparedStatement plan_statement = Metrics.prepare(customer_db, "rental_loader_plans",
+                "SELECT c.cid, p.max_movies FROM customers c, RentalPlans p WHERE p.pid = c.pid");
+        ResultSet plan_set = plan_statement.executeQuery();
+        while (plan_set.next())
+            _max_movies.put(plan_set.getInt(1), plan_set.getInt(2));
+        plan_set.close();
+        plan_statement.close();
+
+        PreparedStatement open_statement = Metrics.prepare(customer_db, "rental_loader_open",
+                "SELECT mid, cid FROM movierentals WHERE status = 'open'");
+        ResultSet open_set = open_statement.executeQuery();
+        while (open_set.next()) {
+            _renter.put(open_set.getInt(1), open_set.getInt(2));
+            _open.merge(open_set.getInt(2), 1, Integer::sum);
+        }
+        open_set.close();
+        open_statement.close();
+
+        _return_statement = Metrics.prepare(customer_db, "rental_loader_return",
+                "UPDATE movierentals SET status = 'closed' WHERE cid = ? AND mid = ? AND status = 'open'");
+        customer_db.setAutoCommit(false);
+    }
+
+    public void load(BufferedReader events) throws Exception {
+        String line;
+        int number = 0;
+        while ((line = events.readLine()) != null) {
+            number++;
+            line = line.trim();
+            if (line.length() == 0)
+                continue;
+            int cid, mid;
+            boolean rent;
+            try {
+                if (line.charAt(0) == '{') {
+                    String[] fields = new String[3];
+                    Matcher field = JSON_FIELD.matcher(line);
+                    while (field.find()) {
+                        String value = field.group(3) != null ? field.group(3) : field.group(2);
+                        fields[field.group(1).equals("cid") ? 0 : field.group(1).equals("mid") ? 1 : 2] = value;
+                    }
+                    cid = Integer.parseInt(fields[0]);
+                    mid = Integer.parseInt(fields[1]);
+                    rent = action(fields[2]);
+                } else {
+                    String[] fields = line.split(",");
+                    if (number == 1 && fields[0].trim().equals("cid"))
+                        continue;
+                    cid = Integer.parseInt(fields[0].trim());
+                    mid = Integer.parseInt(fields[1].trim());
+                    rent = action(fields[2].trim());
+                }
+            } catch (RuntimeException e) {
+                reject(number, "unreadable event: " + line);
+                continue;
+            }
+            if (rent)
+                rent(number, cid, mid);
+            else
+                giveBack(number, cid, mid);
+            if (_pending >= _chunk)
+                flush();
+        }
+        flush();
+    }
+
+    private static boolean action(String action) {
+        if (action.equals("rent"))
+            return true;
+        if (action.equals("return"))
+            return false;
+        throw new IllegalArgumentException(action);
+    }
+
+    private void rent(int number, int cid, int mid) throws Exception {
+        Integer max = _max_movies.get(cid);
+        if (max == null) {
+            reject(number, "customer " + cid + " does not exist");
+            return;
+        }
+        if (mid < 0 || !_movies.get(mid)) {
+            reject(number, "movie " + mid + " does not exist");
+            return;
+        }
+        Integer renter = _renter.get(mid);
+        if (renter != null) {
+            reject(number, "movie " + mid + " is already rented by customer " + renter);
+            return;
+        }
+        int open = _open.getOrDefault(cid, 0);
+        if (open >= max) {
+            reject(number, "customer " + cid + " already rents " + open + " of " + max + " movies");
+            return;
+        }
+        /* the return of an earlier rental of mid is still pending: the COPY of this chunk
+           runs before its returns, so write that return out before renting the movie again */
+        if (_returned.get(mid))
+            flush();
+        _renter.put(mid, cid);
+        _open.put(cid, open + 1);
+        _rents.append(mid).append('\t').append(cid).append("\topen\n");
+        _pending++;
+        _accepted++;
+    }
+
+    private void giveBack(int number, int cid, int mid) throws Exception {
+        Integer renter = _renter.get(mid);
+        if (renter == null || renter != cid) {
+            reject(number, "customer " + cid + " does not rent movie " + mid);
+            return;
+        }
+        _renter.remove(mid);
+        _open.put(cid, _open.get(cid) - 1);
+        _return_statement.setInt(1, cid);
+        _return_statement.setInt(2, mid);
+        _return_statement.addBatch();
+        _returned.set(mid);
+        _pending++;
+        _accepted++;
+    }
+
+    private void reject(int number, String reason) {
+        System.err.println("line " + number + ": " + reason);
+        _rejected++;
+    }
+
+    private void flush() throws Exception {
+        /* write and commit the current chunk: rents first, so a rent and return of the
+           same movie within the chunk leave it closed */
+        if (_pending == 0)
+            return;
+        if (_rents.length() > 0)
+            _copy.copyIn("COPY movierentals (mid, cid, status) FROM STDIN", new StringReader(_rents.toString()));
+        _return_statement.executeBatch();
+        _customer_db.commit();
+        _rents.setLength(0);
+        _returned.clear();
+        _pending = 0;
+    }
+}
@@ -0,0 +1,33 @@
+/**
+ * A row of the RentalPlans table
+ */
+public class RentalPlan {
+
+    private final int _pid;
+    private final String _name;
+    private final int _max_movies;
+    private final double _fee;
+
+    public RentalPlan(int pid, String name, int max_movies, double fee) {
+        _pid = pid;
+        _name = name;
+        _max_movies = max_movies;
+        _fee = fee;
+    }
+
+    public int getPid() {
+        return _pid;
+    }
+
+    public String getName() {
+        return _name;
+    }
+
+    public int getMaxMovies() {
+        return _max_movies;
+    }
+
+    public double getFee() {
+        return _fee;
+    }
+}
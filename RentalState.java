@@ -0,0 +1,345 @@
+import java.sql.Array;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Open rentals held in memory: who rents each movie, and how many movies
+ * each customer rents
+ *
+ * Loaded once from movierentals and, in a process that is the only writer
+ * of movierentals, kept exact by writing through: callers lock the
+ * customer and movies involved, write the database, then record the change
+ * here.  Both maps are split into stripes of primitive open-addressing
+ * tables, each with its own StampedLock, so lookups are optimistic reads
+ * that take no lock, and rents of different movies by different customers
+ * only meet when their ids share a stripe.  Each customer stripe also keeps
+ * the sorted movies of its customers, so listing one customer's rentals
+ * only reads that stripe.
+ */
+public class RentalState {
+
+    private static final int STRIPES = 64;
+
+    private final IntTable[] _renters = new IntTable[STRIPES];
+    private final IntTable[] _counts = new IntTable[STRIPES];
+    /* per customer stripe, cid -> the movies it rents, sorted; an array is replaced, never changed */
+    private final List<Map<Integer, int[]>> _rented = new ArrayList<Map<Integer, int[]>>();
+    private final StampedLock[] _movie_locks = new StampedLock[STRIPES];
+    private final StampedLock[] _customer_locks = new StampedLock[STRIPES];
+
+    /* the guard the current thread holds, if any: StampedLock is not reentrant, so
+       reads made under a guard must not wait for the guard's own locks */
+    private final ThreadLocal<Guard> _held = new ThreadLocal<Guard>();
+
+    private RentalState() {
+        for (int i = 0; i < STRIPES; i++) {
+            _renters[i] = new IntTable();
+            _counts[i] = new IntTable();
+            _rented.add(new HashMap<Integer, int[]>());
+            _movie_locks[i] = new StampedLock();
+            _customer_locks[i] = new StampedLock();
+        }
+    }
+
+    public static RentalState load(Connection customer_db) throws Exception {
+        RentalState state = new RentalState();
+        PreparedStatement statement = Metrics.prepare(customer_db, "rental_state_load",
+                "SELECT mid, cid FROM movierentals WHERE status = 'open'");
+        ResultSet set = statement.executeQuery();
+        while (set.next())
+            state.record(set.getInt(2), set.getInt(1), true);
+        set.close();
+        statement.close();
+        return state;
+    }
+
+    /**********************************************************/
+    /* reads, without locking */
+
+    /* the customer renting mid, or -1 */
+    public int renter(int mid) {
+        return read(_movie_locks[stripe(mid)], _renters[stripe(mid)], mid);
+    }
+
+    public int openCount(int cid) {
+        return Math.max(0, read(_customer_locks[stripe(cid)], _counts[stripe(cid)], cid));
+    }
+
+    /* the movies cid rents, by id */
+    public int[] rentals(int cid) {
+        StampedLock lock = _customer_locks[stripe(cid)];
+        Guard guard = _held.get();
+        if (guard != null && guard.holds(lock))
+            return rented(cid).clone();
+        long stamp = lock.readLock();
+        try {
+            return rented(cid).clone();
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    private int[] rented(int cid) {
+        /* the caller holds the lock of cid */
+        return _rented.get(stripe(cid)).getOrDefault(cid, new int[0]);
+    }
+
+    private int read(StampedLock lock, IntTable table, int key) {
+        long stamp = lock.tryOptimisticRead();
+        int value = table.get(key);
+        if (lock.validate(stamp))
+            return value;
+        Guard guard = _held.get();
+        if (guard != null && guard.holds(lock))
+            return table.get(key);
+        stamp = lock.readLock();
+        try {
+            return table.get(key);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**********************************************************/
+    /* writes */
+
+    /* locks cid and the stripes of mids (all of cid's rentals when mids is null);
+       changes to them may only be made, and written to the database, while it is held */
+    public Guard lock(int cid, int[] mids) {
+        Guard guard = new Guard();
+        guard.customer = _customer_locks[stripe(cid)];
+        guard.customer_stamp = guard.customer.writeLock();
+        /* cid's rentals cannot change while its lock is held, so they can be listed now */
+        if (mids == null)
+            mids = rented(cid).clone();
+        boolean[] stripes = new boolean[STRIPES];
+        for (int mid : mids)
+            stripes[stripe(mid)] = true;
+        /* customer lock first, then movie stripes in ascending order: no lock cycles */
+        List<long[]> movies = new ArrayList<long[]>();
+        for (int i = 0; i < STRIPES; i++) {
+            if (stripes[i])
+                movies.add(new long[] { i, _movie_locks[i].writeLock() });
+        }
+        guard.movies = movies;
+        guard.mids = mids;
+        _held.set(guard);
+        return guard;
+    }
+
+    /* a customer and some movies locked by lock(); reads through it see the
+       latest state, and changes go through it */
+    public class Guard {
+        private StampedLock customer;
+        private long customer_stamp;
+        private List<long[]> movies;
+        private int[] mids;
+
+        /* the movies this guard covers */
+        public int[] mids() {
+            return mids;
+        }
+
+        public int renter(int mid) {
+            return _renters[stripe(mid)].get(mid);
+        }
+
+        public int openCount(int cid) {
+            return Math.max(0, _counts[stripe(cid)].get(cid));
+        }
+
+        /* mid is now rented by cid, as the database says after a write-through */
+        public void rented(int cid, int mid) {
+            record(cid, mid, true);
+        }
+
+        public void returned(int cid, int mid) {
+            record(cid, mid, false);
+        }
+
+        /* re-read the guarded movies after a write that did not say which of them
+           changed hands; only the guarded customer cid gains or loses any of them.
+           statement is the caller's, prepared once per connection, and selects the
+           mids among ANY(?) that cid ? has open in movierentals */
+        public void refresh(int cid, PreparedStatement statement) throws Exception {
+            if (mids.length == 0)
+                return;
+            Integer[] boxed = new Integer[mids.length];
+            for (int i = 0; i < boxed.length; i++)
+                boxed[i] = mids[i];
+            Array mid_array = statement.getConnection().createArrayOf("int4", boxed);
+            statement.clearParameters();
+            statement.setArray(1, mid_array);
+            statement.setInt(2, cid);
+            boolean[] open = new boolean[mids.length];
+            ResultSet set = statement.executeQuery();
+            try {
+                while (set.next()) {
+                    for (int i = 0; i < mids.length; i++) {
+                        if (mids[i] == set.getInt(1))
+                            open[i] = true;
+                    }
+                }
+            } finally {
+                set.close();
+            }
+            for (int i = 0; i < mids.length; i++) {
+                int renter = renter(mids[i]);
+                if (open[i] && renter == -1)
+                    rented(cid, mids[i]);
+                else if (!open[i] && renter == cid)
+                    returned(cid, mids[i]);
+            }
+        }
+
+        private boolean holds(StampedLock lock) {
+            if (lock == customer)
+                return true;
+            for (long[] movie : movies) {
+                if (_movie_locks[(int) movie[0]] == lock)
+                    return true;
+            }
+            return false;
+        }
+
+        public void unlock() {
+            _held.remove();
+            for (int i = movies.size() - 1; i >= 0; i--)
+                _movie_locks[(int) movies.get(i)[0]].unlockWrite(movies.get(i)[1]);
+            customer.unlockWrite(customer_stamp);
+        }
+    }
+
+    private void record(int cid, int mid, boolean rented) {
+        /* the caller holds the locks of cid and mid, or is the loader */
+        IntTable counts = _counts[stripe(cid)];
+        int open = Math.max(0, counts.get(cid));
+        Map<Integer, int[]> movies = _rented.get(stripe(cid));
+        int[] mids = movies.getOrDefault(cid, new int[0]);
+        if (rented) {
+            _renters[stripe(mid)].put(mid, cid);
+            counts.put(cid, open + 1);
+            if (Arrays.binarySearch(mids, mid) < 0) {
+                mids = Arrays.copyOf(mids, mids.length + 1);
+                mids[mids.length - 1] = mid;
+                Arrays.sort(mids);
+                movies.put(cid, mids);
+            }
+        } else if (_renters[stripe(mid)].remove(mid) != -1) {
+            counts.put(cid, Math.max(0, open - 1));
+            int at = Arrays.binarySearch(mids, mid);
+            if (at >= 0) {
+                int[] rest = new int[mids.length - 1];
+                System.arraycopy(mids, 0, rest, 0, at);
+                System.arraycopy(mids, at + 1, rest, at, rest.length - at);
+                if (rest.length == 0)
+                    movies.remove(cid);
+                else
+                    movies.put(cid, rest);
+            }
+        }
+    }
+
+    private static int stripe(int id) {
+        int h = id * 0x9E3779B1;
+        return (h ^ (h >>> 16)) & (STRIPES - 1);
+    }
+
+    /* int -> int open-addressing table with linear probing; -1 means absent.
+       keys and values share one array so a racing optimistic read never
+       sees a key from one generation and a value from another */
+    private static class IntTable {
+        static final int EMPTY = Integer.MIN_VALUE;
+
+        int[] slots = empty(16);
+        int size;
+
+        int get(int key) {
+            int[] slots = this.slots;
+            int mask = slots.length / 2 - 1;
+            int i = hash(key) & mask;
+            /* bounded so that a read racing a write cannot loop forever */
+            for (int probes = 0; probes <= mask; probes++) {
+                int k = slots[2 * i];
+                if (k == key)
+                    return slots[2 * i + 1];
+                if (k == EMPTY)
+                    return -1;
+                i = (i + 1) & mask;
+            }
+            return -1;
+        }
+
+        void put(int key, int value) {
+            if (2 * (size + 1) > slots.length / 2)
+                resize();
+            int mask = slots.length / 2 - 1;
+            int i = hash(key) & mask;
+            while (slots[2 * i] != EMPTY && slots[2 * i] != key)
+                i = (i + 1) & mask;
+            if (slots[2 * i] == EMPTY)
+                size++;
+            slots[2 * i + 1] = value;
+            slots[2 * i] = key;
+        }
+
+        /* removes key and returns its value, or -1 */
+        int remove(int key) {
+            int mask = slots.length / 2 - 1;
+            int i = hash(key) & mask;
+            while (slots[2 * i] != key) {
+                if (slots[2 * i] == EMPTY)
+                    return -1;
+                i = (i + 1) & mask;
+            }
+            int value = slots[2 * i + 1];
+            /* backward-shift deletion keeps every probe chain unbroken without tombstones */
+            int hole = i;
+            for (int j = (i + 1) & mask; slots[2 * j] != EMPTY; j = (j + 1) & mask) {
+                int home = hash(slots[2 * j]) & mask;
+                if (((j - home) & mask) >= ((j - hole) & mask)) {
+                    slots[2 * hole] = slots[2 * j];
+                    slots[2 * hole + 1] = slots[2 * j + 1];
+                    hole = j;
+                }
+            }
+            slots[2 * hole] = EMPTY;
+            size--;
+            return value;
+        }
+
+        private void resize() {
+            int[] old = slots;
+            int[] grown = empty(old.length * 2);
+            int mask = grown.length / 2 - 1;
+            for (int slot = 0; slot < old.length; slot += 2) {
+                if (old[slot] == EMPTY)
+                    continue;
+                int i = hash(old[slot]) & mask;
+                while (grown[2 * i] != EMPTY)
+                    i = (i + 1) & mask;
+                grown[2 * i] = old[slot];
+                grown[2 * i + 1] = old[slot + 1];
+            }
+            slots = grown;
+        }
+
+        private static int[] empty(int length) {
+            int[] slots = new int[length];
+            Arrays.fill(slots, EMPTY);
+            return slots;
+        }
+
+        private static int hash(int key) {
+            int h = key * 0x85EBCA6B;
+            return h ^ (h >>> 13);
+        }
+    }
+}
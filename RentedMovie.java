@@ -0,0 +1,21 @@
+/**
+ * A movie a customer currently rents
+ */
+public class RentedMovie {
+
+    private final int _mid;
+    private final String _name;
+
+    public RentedMovie(int mid, String name) {
+        _mid = mid;
+        _name = name;
+    }
+
+    public int getMid() {
+        return _mid;
+    }
+
+    public String getName() {
+        return _name;
+    }
+}
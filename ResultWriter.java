@@ -0,0 +1,56 @@
+import java.io.PrintStream;
+
+import java.text.DecimalFormat;
+import java.text.NumberFormat;
+
+import java.util.List;
+
+/**
+ * Renders query results as console text, one buffered write per result
+ */
+public class ResultWriter {
+
+    //Format to display plan costs
+    private final NumberFormat feeFormat = new DecimalFormat("0.00");
+
+    private final PrintStream _out;
+
+    public ResultWriter(PrintStream out) {
+        _out = out;
+    }
+
+    public void writeMovies(List<MovieHit> movies) {
+        StringBuilder text = new StringBuilder();
+        for (MovieHit movie : movies) {
+            text.append("ID: ").append(movie.getMid())
+                .append(" NAME: ").append(movie.getName())
+                .append(" YEAR: ").append(movie.getYear()).append('\n');
+            for (String director : movie.getDirectors())
+                text.append("\t\tDirector: ").append(director).append('\n');
+            for (String actor : movie.getActors())
+                text.append("\t\tActor: ").append(actor).append('\n');
+            if (movie.getStatus() != null)
+                text.append("\t\t").append(movie.getStatus().label()).append('\n');
+        }
+        _out.print(text);
+    }
+
+    public void writePlans(List<RentalPlan> plans) {
+        StringBuilder text = new StringBuilder();
+        for (RentalPlan plan : plans) {
+            text.append(plan.getPid()).append('\t')
+                .append(String.format("%-17s", plan.getName())).append('\t')
+                .append("max ").append(plan.getMaxMovies()).append(" movies\t")
+                .append('$').append(feeFormat.format(plan.getFee())).append('\n');
+        }
+        _out.print(text);
+    }
+
+    public void writeRentals(List<RentedMovie> rentals) {
+        StringBuilder text = new StringBuilder();
+        text.append("You are currently renting the following movies:\n");
+        for (RentedMovie rental : rentals)
+            text.append(rental.getMid()).append('\t').append(rental.getName()).append('\n');
+        _out.print(text);
+    }
+}
@@ -0,0 +1,407 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+
+/**
+ * Latency and allocation benchmark for the search engines of the PostgreSQL
+ * catalog, and for the two storage backends
+ *
+ *   java -Ddbconn.config=bench.config SearchBenchmark seed MOVIES
+ *       drops and recreates the imdb tables and the setup.sql customer
+ *       schema in the databases named by the config, filled with MOVIES
+ *       synthetic movies
+ *
+ *   java -Ddbconn.config=bench.config SearchBenchmark run [ITERATIONS]
+ *       runs every engine against selective and broad title patterns and
+ *       prints latency percentiles and bytes allocated per search
+ *
+ *   java -Ddbconn.config=bench.config SearchBenchmark backends CATALOG LEDGER [ITERATIONS]
+ *       runs fastsearch on the same patterns, and a rent followed by a
+ *       return, against Storage.postgres and against an embedded Storage in
+ *       the two files (exported from the databases first if CATALOG does not
+ *       exist yet)
+ *
+ * -Ddbconn.config is required, and may not be the application's own
+ * dbconn.config, so a stray seed cannot wipe the real databases.  run and
+ * backends switch the search result and movie details caches off, whatever
+ * the file says.
+ */
+public class SearchBenchmark {
+
+    interface Engine {
+        void search(PostgresCatalog catalog, String title, int chunk, MovieSink sink) throws Exception;
+    }
+
+    /* engines to compare; new search paths in PostgresCatalog get an entry here */
+    private static final Map<String, Engine> ENGINES = new LinkedHashMap<String, Engine>();
+    static {
+        ENGINES.put("search", (catalog, title, chunk, sink) -> catalog.search(title, true, chunk, sink));
+        ENGINES.put("fastsearch", PostgresCatalog::fastSearch);
+        ENGINES.put("aggregate", PostgresCatalog::aggregated);
+        ENGINES.put("parallel", PostgresCatalog::parallel);
+    }
+
+    /* from selective to broad: "kumquat" is planted in one title out of 10000,
+       "star" in one out of 50, and "the" starts almost a third of all titles */
+    private static final String[] PATTERNS = { "kumquat", "star", "the" };
+
+    private static final int CID = 1; /* george, from setup.sql */
+    private static final int RENTER = 3; /* the first seeded customer, on plan 4 */
+    private static final int WARMUP = 5;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length >= 2 && args[0].equals("seed")) {
+            seed(config(), Integer.parseInt(args[1]));
+        } else if (args.length >= 1 && args[0].equals("run")) {
+            run(uncached(config()), args.length >= 2 ? Integer.parseInt(args[1]) : 50);
+        } else if (args.length >= 3 && args[0].equals("backends")) {
+            backends(uncached(config()), new File(args[1]), new File(args[2]), args.length >= 4 ? Integer.parseInt(args[3]) : 50);
+        } else {
+            System.out.println("Usage: java SearchBenchmark seed MOVIES | run [ITERATIONS]"
+                    + " | backends CATALOG LEDGER [ITERATIONS]");
+            System.exit(1);
+        }
+    }
+
+    private static Properties config() throws Exception {
+        /* the file named by -Ddbconn.config, which must not be the application's own:
+           seed drops and recreates every table in the databases it names */
+        String path = System.getProperty("dbconn.config");
+        if (path == null)
+            throw new IllegalStateException("name the benchmark databases with -Ddbconn.config=FILE");
+        if (new File(path).getCanonicalFile().equals(new File("dbconn.config").getCanonicalFile()))
+            throw new IllegalStateException("refusing to benchmark through dbconn.config, the application's"
+                    + " own databases; point a copy of it at databases the benchmark may overwrite");
+        Properties config = new Properties();
+        FileInputStream in = new FileInputStream(path);
+        try {
+            config.load(in);
+        } finally {
+            in.close();
+        }
+        return config;
+    }
+
+    private static Properties uncached(Properties config) {
+        /* the search result and movie details caches off, so that repeated patterns
+           time the engines rather than cache hits */
+        config.setProperty("searchCacheIds", "0");
+        config.setProperty("movieCacheMB", "0");
+        return config;
+    }
+
+    private static int chunk(Properties config) {
+        return Integer.parseInt(config.getProperty("hydrationChunkSize", "500").trim());
+    }
+
+    /**********************************************************/
+    /* measurement */
+
+    private static void run(Properties config, int iterations) throws Exception {
+        int chunk = chunk(config);
+        PostgresCatalog catalog = PostgresCatalog.open(config);
+        Ledger ledger = PostgresLedger.open(config);
+        if (PostgresCatalog.join_index_footprint() != null)
+            System.out.println(PostgresCatalog.join_index_footprint());
+
+        System.out.println(String.format("%-12s %-12s %8s %10s %10s %10s %10s %12s",
+                "engine", "operation", "rows", "p50 ms", "p90 ms", "p99 ms", "max ms", "alloc KB/op"));
+        for (String pattern : PATTERNS) {
+            for (Map.Entry<String, Engine> engine : ENGINES.entrySet()) {
+                measure(engine.getKey(), pattern, iterations,
+                        () -> search(ledger, sink -> engine.getValue().search(catalog, pattern, chunk, sink)));
+            }
+        }
+        catalog.close();
+        ledger.close();
+    }
+
+    private interface Operation {
+        /* runs once and returns the rows it produced */
+        int run() throws Exception;
+    }
+
+    private interface Search {
+        void run(MovieSink sink) throws Exception;
+    }
+
+    private static void backends(Properties config, File catalog, File ledger, int iterations) throws Exception {
+        if (!catalog.exists()) {
+            Class.forName(config.getProperty("postgreSQLDriver"));
+            String user = config.getProperty("postgreSQLUser");
+            String password = config.getProperty("postgreSQLPassword");
+            Connection imdb = DriverManager.getConnection(config.getProperty("imdbUrl"), user, password);
+            Connection customer = DriverManager.getConnection(config.getProperty("customerUrl"), user, password);
+            System.out.println("Exporting the databases to " + catalog + " and " + ledger);
+            Storage.export(imdb, customer, catalog, ledger);
+            imdb.close();
+            customer.close();
+        }
+
+        System.out.println(String.format("%-12s %-12s %8s %10s %10s %10s %10s %12s",
+                "backend", "operation", "rows", "p50 ms", "p90 ms", "p99 ms", "max ms", "alloc KB/op"));
+        backend(Storage.postgres(config), chunk(config), iterations);
+        backend(Storage.embedded(catalog, ledger), chunk(config), iterations);
+    }
+
+    private static void backend(Storage backend, int chunk, int iterations) throws Exception {
+        /* what Query does on either backend: fastsearch, and a rent and return of a movie
+           nobody rents by a seeded customer on the prime plan */
+        Catalog catalog = backend.catalog();
+        Ledger ledger = backend.ledger();
+        for (String pattern : PATTERNS)
+            measure(backend.name(), pattern, iterations, () -> search(ledger, sink -> catalog.fastSearch(pattern, chunk, sink)));
+
+        int[] mids = { -1 };
+        catalog.fastSearch("star", chunk, movies -> {
+            for (MovieHit movie : movies) {
+                if (mids[0] == -1 && ledger.renters(new int[] { movie.getMid() })[0] == -1)
+                    mids[0] = movie.getMid();
+            }
+        });
+        measure(backend.name(), "rent+return", iterations, () -> {
+            if (mids[0] == -1)
+                throw new IllegalStateException("every movie matching 'star' is rented");
+            if (!ledger.rent(RENTER, mids) || !ledger.giveBack(RENTER, mids))
+                throw new IllegalStateException("customer " + RENTER + " could not rent movie " + mids[0]);
+            return 1;
+        });
+        backend.close();
+    }
+
+    private static int search(Ledger ledger, Search search) throws Exception {
+        /* what search does on a Storage: hydrated chunks from the catalog, availability from the ledger */
+        int[] rows = { 0 };
+        search.run(movies -> {
+            int[] mids = new int[movies.size()];
+            for (int i = 0; i < mids.length; i++)
+                mids[i] = movies.get(i).getMid();
+            int[] renters = ledger.renters(mids);
+            for (int i = 0; i < mids.length; i++)
+                movies.get(i).setStatus(MovieHit.Status.of(renters[i], CID));
+            rows[0] += movies.size();
+        });
+        return rows[0];
+    }
+
+    private static void measure(String backend, String operation, int iterations, Operation op) throws Exception {
+        com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        int rows = 0;
+        try {
+            for (int i = 0; i < WARMUP; i++)
+                rows = op.run();
+        } catch (IllegalStateException e) {
+            System.out.println(String.format("%-12s %-12s skipped: %s", backend, operation, e.getMessage()));
+            return;
+        }
+        long[] nanos = new long[iterations];
+        long allocated = threads.getCurrentThreadAllocatedBytes();
+        for (int i = 0; i < iterations; i++) {
+            long start = System.nanoTime();
+            op.run();
+            nanos[i] = System.nanoTime() - start;
+        }
+        allocated = threads.getCurrentThreadAllocatedBytes() - allocated;
+        Arrays.sort(nanos);
+        System.out.println(String.format("%-12s %-12s %8d %10.2f %10.2f %10.2f %10.2f %12.1f",
+                backend, operation, rows,
+                percentile(nanos, 0.50), percentile(nanos, 0.90),
+                percentile(nanos, 0.99), nanos[iterations - 1] / 1e6,
+                allocated / 1024.0 / iterations));
+    }
+
+    private static double percentile(long[] sorted, double p) {
+        int i = (int) Math.ceil(p * sorted.length) - 1;
+        return sorted[Math.max(0, i)] / 1e6;
+    }
+
+    /**********************************************************/
+    /* synthetic data */
+
+    private static void seed(Properties config, int movies) throws Exception {
+        Class.forName(config.getProperty("postgreSQLDriver"));
+        String user = config.getProperty("postgreSQLUser");
+        String password = config.getProperty("postgreSQLPassword");
+
+        System.out.println("Seeding " + movies + " movies into " + config.getProperty("imdbUrl")
+                + " and " + config.getProperty("customerUrl"));
+        Connection imdb = DriverManager.getConnection(config.getProperty("imdbUrl"), user, password);
+        seedImdb(imdb, movies, new Random(345));
+        imdb.close();
+
+        Connection customer = DriverManager.getConnection(config.getProperty("customerUrl"), user, password);
+        seedCustomers(customer, movies, new Random(346));
+        customer.close();
+    }
+
+    private static void seedImdb(Connection imdb, int movies, Random random) throws Exception {
+        Statement ddl = imdb.createStatement();
+        ddl.executeUpdate("DROP TABLE IF EXISTS casts, movie_directors, actor, directors, movie");
+        ddl.executeUpdate("CREATE TABLE movie (id int PRIMARY KEY, name varchar(150), year int)");
+        ddl.executeUpdate("CREATE TABLE directors (id int PRIMARY KEY, fname varchar(30), lname varchar(30))");
+        ddl.executeUpdate("CREATE TABLE movie_directors (did int, mid int)");
+        ddl.executeUpdate("CREATE TABLE actor (id int PRIMARY KEY, fname varchar(30), lname varchar(30), gender char(1))");
+        ddl.executeUpdate("CREATE TABLE casts (pid int, mid int, role varchar(50))");
+        imdb.setAutoCommit(false);
+
+        String[] words = vocabulary(random, 5000);
+        PreparedStatement movie = imdb.prepareStatement("INSERT INTO movie VALUES (?, ?, ?)");
+        for (int id = 1; id <= movies; id++) {
+            movie.setInt(1, id);
+            movie.setString(2, title(random, words, id));
+            movie.setInt(3, 1920 + random.nextInt(100));
+            batch(movie, id);
+        }
+        movie.executeBatch();
+
+        int directors = Math.max(1, movies / 4);
+        PreparedStatement director = imdb.prepareStatement("INSERT INTO directors VALUES (?, ?, ?)");
+        for (int id = 1; id <= directors; id++) {
+            director.setInt(1, id);
+            director.setString(2, name(random, words));
+            director.setString(3, name(random, words));
+            batch(director, id);
+        }
+        director.executeBatch();
+
+        PreparedStatement directs = imdb.prepareStatement("INSERT INTO movie_directors VALUES (?, ?)");
+        for (int mid = 1; mid <= movies; mid++) {
+            directs.setInt(1, 1 + random.nextInt(directors));
+            directs.setInt(2, mid);
+            batch(directs, mid);
+        }
+        directs.executeBatch();
+
+        int actors = Math.max(1, movies / 2);
+        PreparedStatement actor = imdb.prepareStatement("INSERT INTO actor VALUES (?, ?, ?, ?)");
+        for (int id = 1; id <= actors; id++) {
+            actor.setInt(1, id);
+            actor.setString(2, name(random, words));
+            actor.setString(3, name(random, words));
+            actor.setString(4, random.nextBoolean() ? "M" : "F");
+            batch(actor, id);
+        }
+        actor.executeBatch();
+
+        /* about 8 cast rows per movie, like the real imdb */
+        PreparedStatement cast = imdb.prepareStatement("INSERT INTO casts VALUES (?, ?, ?)");
+        int rows = 0;
+        for (int mid = 1; mid <= movies; mid++) {
+            int size = random.nextInt(17);
+            for (int i = 0; i < size; i++) {
+                cast.setInt(1, 1 + random.nextInt(actors));
+                cast.setInt(2, mid);
+                cast.setString(3, name(random, words));
+                batch(cast, ++rows);
+            }
+        }
+        cast.executeBatch();
+
+        ddl.executeUpdate("CREATE INDEX movie_directors_mid ON movie_directors (mid)");
+        ddl.executeUpdate("CREATE INDEX casts_mid ON casts (mid)");
+        imdb.commit();
+        imdb.setAutoCommit(true);
+        ddl.executeUpdate("ANALYZE");
+        ddl.close();
+    }
+
+    private static void seedCustomers(Connection customer, int movies, Random random) throws Exception {
+        Statement ddl = customer.createStatement();
+        ddl.executeUpdate("DROP TABLE IF EXISTS MovieRentals, Customers, RentalPlans");
+        String setup = new String(Files.readAllBytes(Paths.get("setup.sql")), StandardCharsets.UTF_8);
+        for (String sql : setup.replaceAll("--[^\n]*", "").split(";")) {
+            if (sql.trim().length() > 0)
+                ddl.executeUpdate(sql);
+        }
+
+        /* more customers, each holding a few open rentals, so status lookups find something */
+        customer.setAutoCommit(false);
+        PreparedStatement add = customer.prepareStatement("INSERT INTO Customers VALUES (?, ?, 'secret', ?, ?, 4)");
+        PreparedStatement rent = customer.prepareStatement("INSERT INTO MovieRentals VALUES (?, ?, 'open')");
+        int customers = Math.max(1, movies / 100);
+        for (int cid = 3; cid < 3 + customers; cid++) {
+            add.setInt(1, cid);
+            add.setString(2, "customer" + cid);
+            add.setString(3, "Customer");
+            add.setString(4, Integer.toString(cid));
+            add.addBatch();
+        }
+        add.executeBatch();
+        for (int mid = 1; mid <= movies; mid += 50) {
+            rent.setInt(1, mid);
+            rent.setInt(2, 3 + random.nextInt(customers));
+            batch(rent, mid);
+        }
+        rent.executeBatch();
+        customer.commit();
+        customer.setAutoCommit(true);
+        ddl.executeUpdate("ANALYZE");
+        ddl.close();
+    }
+
+    private static void batch(PreparedStatement statement, int row) throws Exception {
+        statement.addBatch();
+        if (row % 5000 == 0)
+            statement.executeBatch();
+    }
+
+    private static String[] vocabulary(Random random, int size) {
+        String consonants = "bcdfghjklmnprstvwz";
+        String vowels = "aeiou";
+        String[] words = new String[size];
+        for (int i = 0; i < size; i++) {
+            StringBuilder word = new StringBuilder();
+            int syllables = 1 + random.nextInt(3);
+            for (int j = 0; j < syllables; j++) {
+                word.append(consonants.charAt(random.nextInt(consonants.length())));
+                word.append(vowels.charAt(random.nextInt(vowels.length())));
+            }
+            words[i] = word.toString();
+        }
+        return words;
+    }
+
+    private static String title(Random random, String[] words, int id) {
+        StringBuilder title = new StringBuilder();
+        if (random.nextInt(10) < 3)
+            title.append("The ");
+        int length = 1 + random.nextInt(4);
+        for (int i = 0; i < length; i++) {
+            if (i > 0)
+                title.append(' ');
+            title.append(capitalize(words[skewed(random, words.length)]));
+        }
+        if (id % 50 == 0)
+            title.append(" Star");
+        if (id % 10000 == 0)
+            title.append(" Kumquat");
+        return title.toString();
+    }
+
+    private static String name(Random random, String[] words) {
+        return capitalize(words[random.nextInt(words.length)]);
+    }
+
+    private static int skewed(Random random, int n) {
+        /* roughly Zipf: small indexes are picked far more often */
+        double u = random.nextDouble();
+        return (int) Math.min(n - 1, Math.floor(Math.pow(n, u)) - 1);
+    }
+
+    private static String capitalize(String word) {
+        return Character.toUpperCase(word.charAt(0)) + word.substring(1);
+    }
+}
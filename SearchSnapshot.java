@@ -0,0 +1,374 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Read-only snapshot of the imdb movie, director and actor tables in a
+ * memory-mapped file
+ *
+ * The file holds the sorted movie ids, years and titles, movie->director and
+ * movie->actor adjacency in compressed sparse row form, and the director and
+ * actor name tables.  Nothing is copied onto the heap when it is opened, so
+ * startup costs one mmap and lookups read the mapped pages directly.
+ */
+public class SearchSnapshot implements MovieGraph {
+
+    private static final int MAGIC = 0x46534958; /* "FSIX" */
+    private static final int FORMAT = 2; /* 2: missing names and titles are stored empty */
+
+    /* sections, in file order */
+    private static final int IDS = 0;
+    private static final int YEARS = 1;
+    private static final int TITLE_OFFSETS = 2;
+    private static final int TITLE_BYTES = 3;
+    private static final int DIRECTOR_ROWS = 4;
+    private static final int DIRECTOR_COLS = 5;
+    private static final int ACTOR_ROWS = 6;
+    private static final int ACTOR_COLS = 7;
+    private static final int DIRECTOR_FIRST_OFFSETS = 8;
+    private static final int DIRECTOR_FIRST_BYTES = 9;
+    private static final int DIRECTOR_LAST_OFFSETS = 10;
+    private static final int DIRECTOR_LAST_BYTES = 11;
+    private static final int ACTOR_FIRST_OFFSETS = 12;
+    private static final int ACTOR_FIRST_BYTES = 13;
+    private static final int ACTOR_LAST_OFFSETS = 14;
+    private static final int ACTOR_LAST_BYTES = 15;
+    private static final int SECTIONS = 16;
+
+    /* magic, format, stamp, movie count, then one int position per section */
+    private static final int HEADER_SIZE = 4 + 4 + 8 + 4 + 4 * SECTIONS;
+
+    /* row counts and highest ids (id sums for the link tables) of the source tables, read
+       from the data itself; imdb only grows, so a row added anywhere changes one of them */
+    private static final String _stamp_sql = "SELECT (SELECT count(*) FROM movie), (SELECT coalesce(max(id), 0) FROM movie), "
+        + "(SELECT count(*) FROM directors), (SELECT coalesce(max(id), 0) FROM directors), "
+        + "(SELECT count(*) FROM actor), (SELECT coalesce(max(id), 0) FROM actor), "
+        + "(SELECT count(*) FROM movie_directors), (SELECT coalesce(sum(mid::bigint + did), 0) FROM movie_directors), "
+        + "(SELECT count(*) FROM casts), (SELECT coalesce(sum(mid::bigint + pid), 0) FROM casts)";
+
+    private final MappedByteBuffer _map;
+    private final long _stamp;
+    private final int _size;
+    private final int[] _at = new int[SECTIONS];
+
+    private SearchSnapshot(MappedByteBuffer map) {
+        _map = map;
+        if (map.getInt(0) != MAGIC || map.getInt(4) != FORMAT)
+            throw new IllegalStateException("not a search snapshot, or an older format");
+        _stamp = map.getLong(8);
+        _size = map.getInt(16);
+        for (int i = 0; i < SECTIONS; i++)
+            _at[i] = map.getInt(20 + 4 * i);
+    }
+
+    /**********************************************************/
+    /* opening */
+
+    /* maps the snapshot at path, first rewriting it from imdb if it is missing,
+       stale or in an older format */
+    public static SearchSnapshot open(Connection imdb, File path) throws Exception {
+        long stamp = stamp(imdb);
+        if (path.exists() && stamp_of(path) == stamp)
+            return map(path);
+        write(imdb, path, stamp);
+        return map(path);
+    }
+
+    /* the stamp in the header of the snapshot at path, or -1 if it is not one in this format */
+    private static long stamp_of(File path) throws Exception {
+        RandomAccessFile file = new RandomAccessFile(path, "r");
+        try {
+            if (file.length() < 16 || file.readInt() != MAGIC || file.readInt() != FORMAT)
+                return -1;
+            return file.readLong();
+        } finally {
+            file.close();
+        }
+    }
+
+    public static SearchSnapshot map(File path) throws Exception {
+        RandomAccessFile file = new RandomAccessFile(path, "r");
+        try {
+            if (file.length() > Integer.MAX_VALUE)
+                throw new IllegalStateException("snapshot larger than 2GB: " + path);
+            return new SearchSnapshot(file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length()));
+        } finally {
+            file.close(); /* the mapping stays valid */
+        }
+    }
+
+    public static long stamp(Connection imdb) throws Exception {
+        PreparedStatement stamp_statement = Metrics.prepare(imdb, "search_snapshot_stamp", _stamp_sql);
+        ResultSet stamp_set = stamp_statement.executeQuery();
+        stamp_set.next();
+        long stamp = 0;
+        for (int i = 1; i <= 10; i++)
+            stamp = stamp * 1000003L + stamp_set.getLong(i);
+        stamp_set.close();
+        stamp_statement.close();
+        return stamp;
+    }
+
+    /**********************************************************/
+    /* lookups */
+
+    public long stamp() {
+        return _stamp;
+    }
+
+    public int size() {
+        return _size;
+    }
+
+    public int id(int doc) {
+        return _map.getInt(_at[IDS] + 4 * doc);
+    }
+
+    /* the doc of movie id mid, or -1 */
+    public int doc(int mid) {
+        int low = 0, high = _size - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int id = id(middle);
+            if (id < mid)
+                low = middle + 1;
+            else if (id > mid)
+                high = middle - 1;
+            else
+                return middle;
+        }
+        return -1;
+    }
+
+    public int year(int doc) {
+        return _map.getInt(_at[YEARS] + 4 * doc);
+    }
+
+    public String title(int doc) {
+        return string(TITLE_OFFSETS, TITLE_BYTES, doc);
+    }
+
+    public int directorCount(int doc) {
+        return row_end(DIRECTOR_ROWS, doc) - row_start(DIRECTOR_ROWS, doc);
+    }
+
+    /* the i-th director of doc, as an index into the director name table */
+    public int director(int doc, int i) {
+        return _map.getInt(_at[DIRECTOR_COLS] + 4 * (row_start(DIRECTOR_ROWS, doc) + i));
+    }
+
+    public String directorFirstName(int director) {
+        return string(DIRECTOR_FIRST_OFFSETS, DIRECTOR_FIRST_BYTES, director);
+    }
+
+    public String directorLastName(int director) {
+        return string(DIRECTOR_LAST_OFFSETS, DIRECTOR_LAST_BYTES, director);
+    }
+
+    public int actorCount(int doc) {
+        return row_end(ACTOR_ROWS, doc) - row_start(ACTOR_ROWS, doc);
+    }
+
+    public int actor(int doc, int i) {
+        return _map.getInt(_at[ACTOR_COLS] + 4 * (row_start(ACTOR_ROWS, doc) + i));
+    }
+
+    public String actorFirstName(int actor) {
+        return string(ACTOR_FIRST_OFFSETS, ACTOR_FIRST_BYTES, actor);
+    }
+
+    public String actorLastName(int actor) {
+        return string(ACTOR_LAST_OFFSETS, ACTOR_LAST_BYTES, actor);
+    }
+
+    /* docs whose title matches ilike '%text%', in id order, so % and _ in text are
+       wildcards as in the search query; a linear scan over the mapped titles, with
+       no index behind it */
+    public int[] search(String text) {
+        String needle = text.toLowerCase(Locale.ROOT);
+        String pattern = TitleIndex.isPlainSubstring(needle) ? null : '%' + needle + '%';
+        byte[] ascii = needle.getBytes(StandardCharsets.UTF_8);
+        boolean plain = pattern == null && ascii.length == needle.length();
+        int[] found = new int[16];
+        int count = 0;
+        for (int doc = 0; doc < _size; doc++) {
+            boolean match = plain ? contains_ascii(doc, ascii)
+                : pattern != null ? TitleIndex.like(title(doc).toLowerCase(Locale.ROOT), pattern)
+                : title(doc).toLowerCase(Locale.ROOT).contains(needle);
+            if (match) {
+                if (count == found.length)
+                    found = Arrays.copyOf(found, count * 2);
+                found[count++] = doc;
+            }
+        }
+        return Arrays.copyOf(found, count);
+    }
+
+    private boolean contains_ascii(int doc, byte[] needle) {
+        /* compares the mapped UTF-8 bytes directly; multi-byte characters never
+           equal an ASCII byte, so they simply fail to match */
+        int start = _map.getInt(_at[TITLE_OFFSETS] + 4 * doc);
+        int end = _map.getInt(_at[TITLE_OFFSETS] + 4 * doc + 4);
+        int base = _at[TITLE_BYTES];
+        int last = end - needle.length;
+        for (int i = start; i <= last; i++) {
+            int j = 0;
+            while (j < needle.length && lower(_map.get(base + i + j)) == needle[j])
+                j++;
+            if (j == needle.length)
+                return true;
+        }
+        return false;
+    }
+
+    private static byte lower(byte b) {
+        return b >= 'A' && b <= 'Z' ? (byte) (b + ('a' - 'A')) : b;
+    }
+
+    private int row_start(int rows, int doc) {
+        return _map.getInt(_at[rows] + 4 * doc);
+    }
+
+    private int row_end(int rows, int doc) {
+        return _map.getInt(_at[rows] + 4 * doc + 4);
+    }
+
+    private String string(int offsets, int bytes, int i) {
+        int start = _map.getInt(_at[offsets] + 4 * i);
+        int end = _map.getInt(_at[offsets] + 4 * i + 4);
+        byte[] utf8 = new byte[end - start];
+        for (int k = 0; k < utf8.length; k++)
+            utf8[k] = _map.get(_at[bytes] + start + k);
+        return new String(utf8, StandardCharsets.UTF_8);
+    }
+
+    /**********************************************************/
+    /* writing */
+
+    /* reads the imdb tables and writes a new snapshot to path, replacing any old one */
+    public static void write(Connection imdb, File path, long stamp) throws Exception {
+        int[] ids = new int[1 << 16];
+        int[] years = new int[1 << 16];
+        StringTable titles = new StringTable();
+        int n = 0;
+        PreparedStatement movie_statement = Metrics.prepare(imdb, "search_snapshot_movies", "SELECT id, name, year FROM movie ORDER BY id");
+        ResultSet movie_set = movie_statement.executeQuery();
+        while (movie_set.next()) {
+            if (n == ids.length) {
+                ids = Arrays.copyOf(ids, n * 2);
+                years = Arrays.copyOf(years, n * 2);
+            }
+            ids[n] = movie_set.getInt(1);
+            titles.add(movie_set.getString(2));
+            years[n] = movie_set.getInt(3);
+            if (movie_set.wasNull())
+                years[n] = TitleIndex.NO_YEAR;
+            n++;
+        }
+        movie_set.close();
+        movie_statement.close();
+        ids = Arrays.copyOf(ids, n);
+
+        JoinIndex join = JoinIndex.load(imdb, ids);
+        JoinIndex.Relation directors = join.directors();
+        JoinIndex.Relation actors = join.actors();
+        StringTable director_first = new StringTable();
+        StringTable director_last = new StringTable();
+        for (int i = 0; i < join.directorPeople(); i++) {
+            director_first.add(join.directorFirstName(i));
+            director_last.add(join.directorLastName(i));
+        }
+        StringTable actor_first = new StringTable();
+        StringTable actor_last = new StringTable();
+        for (int i = 0; i < join.actorPeople(); i++) {
+            actor_first.add(join.actorFirstName(i));
+            actor_last.add(join.actorLastName(i));
+        }
+
+        File temp = new File(path.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp), 1 << 16));
+        int[] at = new int[SECTIONS];
+        int position = HEADER_SIZE;
+        int[] sizes = {
+            4 * n, 4 * n, 4 * (n + 1), titles.bytes(),
+            4 * (n + 1), 4 * directors.cols.length, 4 * (n + 1), 4 * actors.cols.length,
+            director_first.offsetBytes(), director_first.bytes(),
+            director_last.offsetBytes(), director_last.bytes(),
+            actor_first.offsetBytes(), actor_first.bytes(),
+            actor_last.offsetBytes(), actor_last.bytes()
+        };
+        for (int i = 0; i < SECTIONS; i++) {
+            at[i] = position;
+            position += sizes[i];
+            if (position < 0)
+                throw new IllegalStateException("snapshot would be larger than 2GB");
+        }
+        out.writeInt(MAGIC);
+        out.writeInt(FORMAT);
+        out.writeLong(stamp);
+        out.writeInt(n);
+        for (int i = 0; i < SECTIONS; i++)
+            out.writeInt(at[i]);
+        write_ints(out, ids, n);
+        write_ints(out, years, n);
+        titles.write(out);
+        write_ints(out, directors.rows, n + 1);
+        write_ints(out, directors.cols, directors.cols.length);
+        write_ints(out, actors.rows, n + 1);
+        write_ints(out, actors.cols, actors.cols.length);
+        director_first.write(out);
+        director_last.write(out);
+        actor_first.write(out);
+        actor_last.write(out);
+        out.close();
+        Files.move(temp.toPath(), path.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void write_ints(DataOutputStream out, int[] values, int count) throws Exception {
+        for (int i = 0; i < count; i++)
+            out.writeInt(values[i]);
+    }
+
+    /* strings as one UTF-8 byte run plus count + 1 offsets into it; a NULL is stored empty */
+    private static class StringTable {
+        private int[] _offsets = new int[1 << 16];
+        private byte[] _bytes = new byte[1 << 20];
+        private int _count;
+
+        void add(String s) {
+            byte[] utf8 = (s == null ? "" : s).getBytes(StandardCharsets.UTF_8);
+            int start = _offsets[_count];
+            if (start + utf8.length > _bytes.length)
+                _bytes = Arrays.copyOf(_bytes, Math.max(_bytes.length * 2, start + utf8.length));
+            System.arraycopy(utf8, 0, _bytes, start, utf8.length);
+            if (_count + 2 > _offsets.length)
+                _offsets = Arrays.copyOf(_offsets, _offsets.length * 2);
+            _offsets[++_count] = start + utf8.length;
+        }
+
+        int offsetBytes() {
+            return 4 * (_count + 1);
+        }
+
+        int bytes() {
+            return _offsets[_count];
+        }
+
+        void write(DataOutputStream out) throws Exception {
+            write_ints(out, _offsets, _count + 1);
+            out.write(_bytes, 0, bytes());
+        }
+    }
+}
@@ -0,0 +1,87 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.util.Properties;
+
+/**
+ * A catalog and a ledger that together hold everything the video store reads
+ * and writes
+ *
+ * Query reaches both backends through this: storage = postgres is the imdb
+ * and customer databases, with whatever dbconn.config turns on over them
+ * (title index, snapshot, caches, journal, rental state), and storage =
+ * embedded is a catalog and ledger in this process.
+ *
+ *   java -Ddbconn.config=dbconn.config Storage export CATALOG LEDGER
+ *       writes the imdb and customer databases named by the config into
+ *       the two files of an embedded store (storage = embedded)
+ */
+public class Storage {
+
+    private final String _name;
+    private final Catalog _catalog;
+    private final Ledger _ledger;
+
+    public Storage(String name, Catalog catalog, Ledger ledger) {
+        _name = name;
+        _catalog = catalog;
+        _ledger = ledger;
+    }
+
+    /* the imdb and customer databases named by config */
+    public static Storage postgres(Properties config) throws Exception {
+        PostgresCatalog catalog = PostgresCatalog.open(config);
+        try {
+            return new Storage("postgres", catalog, PostgresLedger.open(config));
+        } catch (Exception e) {
+            catalog.close();
+            throw e;
+        }
+    }
+
+    /* in this process, from files written by export */
+    public static Storage embedded(File catalog, File ledger) throws Exception {
+        return new Storage("embedded", EmbeddedCatalog.open(catalog), EmbeddedLedger.open(ledger));
+    }
+
+    public static void export(Connection imdb, Connection customer_db, File catalog, File ledger) throws Exception {
+        SearchSnapshot.write(imdb, catalog, SearchSnapshot.stamp(imdb));
+        EmbeddedLedger.write(customer_db, ledger);
+    }
+
+    public String name() {
+        return _name;
+    }
+
+    public Catalog catalog() {
+        return _catalog;
+    }
+
+    public Ledger ledger() {
+        return _ledger;
+    }
+
+    public void close() throws Exception {
+        _catalog.close();
+        _ledger.close();
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 3 || !args[0].equals("export")) {
+            System.out.println("Usage: java Storage export CATALOG LEDGER");
+            System.exit(1);
+        }
+        Properties config = new Properties();
+        config.load(new FileInputStream(System.getProperty("dbconn.config", "dbconn.config")));
+        Class.forName(config.getProperty("postgreSQLDriver"));
+        String user = config.getProperty("postgreSQLUser");
+        String password = config.getProperty("postgreSQLPassword");
+        Connection imdb = DriverManager.getConnection(config.getProperty("imdbUrl"), user, password);
+        Connection customer = DriverManager.getConnection(config.getProperty("customerUrl"), user, password);
+        export(imdb, customer, new File(args[1]), new File(args[2]));
+        imdb.close();
+        customer.close();
+        System.out.println("Wrote " + args[1] + " and " + args[2]);
+    }
+}
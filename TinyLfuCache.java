@@ -0,0 +1,246 @@
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.ToIntFunction;
+
+/**
+ * Bounded cache of immutable values with W-TinyLFU admission
+ *
+ * New entries land in a small LRU window (1% of the weight budget).  When
+ * the window overflows, its least recent entry only moves into the main LRU
+ * region if it has been asked for more often than the main region's least
+ * recent entry, as estimated by a count-min sketch of recent lookups; so a
+ * scan over cold movies cannot flush the popular ones.  Size is measured by
+ * a caller-supplied weigher rather than by entry count.
+ *
+ * Keys are split by hash into stripes, each with its own lock, regions,
+ * sketch and share of the weight budget, so concurrent lookups of
+ * different movies rarely wait on each other.
+ */
+public class TinyLfuCache<K, V> {
+
+    private static final int STRIPES = 16;
+
+    private final String _name;
+    private final ToIntFunction<V> _weigher;
+    private final Stripe<K, V>[] _stripes;
+
+    /* name is what the hits and misses are recorded under in Metrics */
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    public TinyLfuCache(String name, long max_weight, ToIntFunction<V> weigher) {
+        _name = name;
+        _weigher = weigher;
+        /* a small budget stays in one stripe so that an entry of any allowed weight still fits */
+        int stripes = max_weight >= STRIPES * 1024L ? STRIPES : 1;
+        _stripes = new Stripe[stripes];
+        for (int i = 0; i < stripes; i++)
+            _stripes[i] = new Stripe<K, V>(max_weight / stripes);
+    }
+
+    /* the heaviest value put will keep */
+    public long maxEntryWeight() {
+        return _stripes[0]._window_max + _stripes[0]._main_max;
+    }
+
+    /* the cached value of key, or null */
+    public V get(K key) {
+        V value = stripe(key).get(key);
+        if (value == null)
+            Metrics.cacheMiss(_name);
+        else
+            Metrics.cacheHit(_name);
+        return value;
+    }
+
+    /* the cached value of key, or null, without counting as a lookup */
+    public V peek(K key) {
+        return stripe(key).peek(key);
+    }
+
+    public void put(K key, V value) {
+        int weight = _weigher.applyAsInt(value);
+        int evicted = stripe(key).put(key, value, weight);
+        for (int i = 0; i < evicted; i++)
+            Metrics.cacheEviction(_name);
+    }
+
+    public void remove(K key) {
+        stripe(key).remove(key);
+    }
+
+    public void clear() {
+        for (Stripe<K, V> stripe : _stripes)
+            stripe.clear();
+    }
+
+    public int size() {
+        int size = 0;
+        for (Stripe<K, V> stripe : _stripes)
+            size += stripe.size();
+        return size;
+    }
+
+    public long weight() {
+        long weight = 0;
+        for (Stripe<K, V> stripe : _stripes)
+            weight += stripe.weight();
+        return weight;
+    }
+
+    private Stripe<K, V> stripe(K key) {
+        int h = key.hashCode() * 0x9E3779B1;
+        return _stripes[(h ^ (h >>> 16)) & (_stripes.length - 1)];
+    }
+
+    /* one lock's worth of the cache: a window and a main LRU region and their sketch */
+    private static class Stripe<K, V> {
+        private final long _window_max;
+        private final long _main_max;
+
+        private final LinkedHashMap<K, Entry<V>> _window = new LinkedHashMap<K, Entry<V>>(16, 0.75f, true);
+        private final LinkedHashMap<K, Entry<V>> _main = new LinkedHashMap<K, Entry<V>>(16, 0.75f, true);
+        private long _window_weight;
+        private long _main_weight;
+        private final FrequencySketch _sketch = new FrequencySketch();
+
+        Stripe(long max_weight) {
+            _window_max = Math.max(1, max_weight / 100);
+            _main_max = Math.max(0, max_weight - _window_max);
+        }
+
+        synchronized V get(K key) {
+            _sketch.increment(key.hashCode());
+            return peek(key);
+        }
+
+        synchronized V peek(K key) {
+            Entry<V> entry = _window.get(key);
+            if (entry == null)
+                entry = _main.get(key);
+            return entry == null ? null : entry.value;
+        }
+
+        /* returns how many entries were evicted or refused admission */
+        synchronized int put(K key, V value, int weight) {
+            if (weight > _window_max + _main_max)
+                return 0;
+            remove(key);
+            _window.put(key, new Entry<V>(value, weight));
+            _window_weight += weight;
+            _sketch.ensureCapacity(_window.size() + _main.size());
+            int evicted = 0;
+            while (_window_weight > _window_max)
+                evicted += promote();
+            return evicted;
+        }
+
+        synchronized void remove(K key) {
+            Entry<V> entry = _window.remove(key);
+            if (entry != null)
+                _window_weight -= entry.weight;
+            entry = _main.remove(key);
+            if (entry != null)
+                _main_weight -= entry.weight;
+        }
+
+        synchronized void clear() {
+            _window.clear();
+            _main.clear();
+            _window_weight = 0;
+            _main_weight = 0;
+        }
+
+        synchronized int size() {
+            return _window.size() + _main.size();
+        }
+
+        synchronized long weight() {
+            return _window_weight + _main_weight;
+        }
+
+        private int promote() {
+            /* move the least recent window entry into main if it is asked for more often
+               than main's least recent entry, which is the only one it is compared with;
+               once admitted, main evicts from its least recent end until it fits */
+            Iterator<Map.Entry<K, Entry<V>>> window = _window.entrySet().iterator();
+            Map.Entry<K, Entry<V>> candidate = window.next();
+            window.remove();
+            int weight = candidate.getValue().weight;
+            _window_weight -= weight;
+
+            if (weight > _main_max)
+                return 1;
+            if (_main_weight + weight > _main_max) {
+                K victim = _main.keySet().iterator().next();
+                if (_sketch.frequency(victim.hashCode()) >= _sketch.frequency(candidate.getKey().hashCode()))
+                    return 1;
+            }
+            Iterator<Map.Entry<K, Entry<V>>> main = _main.entrySet().iterator();
+            int evicted = 0;
+            while (_main_weight + weight > _main_max) {
+                Map.Entry<K, Entry<V>> victim = main.next();
+                main.remove();
+                _main_weight -= victim.getValue().weight;
+                evicted++;
+            }
+            _main.put(candidate.getKey(), candidate.getValue());
+            _main_weight += weight;
+            return evicted;
+        }
+    }
+
+    private static class Entry<V> {
+        final V value;
+        final int weight;
+
+        Entry(V value, int weight) {
+            this.value = value;
+            this.weight = weight;
+        }
+    }
+
+    /* count-min sketch of counters that saturate at 15, stored one per byte, four per
+       key, halved every 10 x width increments so that old popularity fades */
+    private static class FrequencySketch {
+        private static final int[] SEEDS = { 0x9E3779B1, 0x85EBCA77, 0xC2B2AE3D, 0x27D4EB2F };
+
+        private byte[] _counts = new byte[1024];
+        private int _additions;
+
+        void ensureCapacity(int entries) {
+            int width = Integer.highestOneBit(Math.max(1024, entries * 4 - 1)) << 1;
+            if (width > _counts.length && width <= (1 << 26)) {
+                _counts = new byte[width];
+                _additions = 0;
+            }
+        }
+
+        void increment(int hash) {
+            boolean added = false;
+            for (int seed : SEEDS) {
+                int i = index(hash, seed);
+                if (_counts[i] < 15) {
+                    _counts[i]++;
+                    added = true;
+                }
+            }
+            if (added && ++_additions >= 10 * _counts.length) {
+                for (int i = 0; i < _counts.length; i++)
+                    _counts[i] >>= 1;
+                _additions /= 2;
+            }
+        }
+
+        int frequency(int hash) {
+            int frequency = 15;
+            for (int seed : SEEDS)
+                frequency = Math.min(frequency, _counts[index(hash, seed)]);
+            return frequency;
+        }
+
+        private int index(int hash, int seed) {
+            int h = (hash ^ (hash >>> 16)) * seed;
+            return (h ^ (h >>> 15)) & (_counts.length - 1);
+        }
+    }
+}
@@ -0,0 +1,278 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * In-memory trigram index over the titles of the imdb movie table
+ */
+public class TitleIndex {
+
+    private static final String _load_sql = "SELECT id, name, year FROM movie ORDER BY id";
+
+    /* year value stored for movies without one */
+    public static final int NO_YEAR = Integer.MIN_VALUE;
+
+    /* one entry per movie, in id order; a "doc" is a position in these arrays */
+    private int[] _ids;
+    private String[] _names;
+    private int[] _years;
+    private int _size;
+
+    /* open addressing table: trigram key -> posting list of docs (ascending) */
+    private long[] _keys;
+    private int[][] _postings;
+    private int[] _posting_sizes;
+    private int _key_count;
+
+    private TitleIndex(int capacity) {
+        _ids = new int[capacity];
+        _names = new String[capacity];
+        _years = new int[capacity];
+        _keys = new long[1 << 16];
+        Arrays.fill(_keys, -1L);
+        _postings = new int[1 << 16][];
+        _posting_sizes = new int[1 << 16];
+    }
+
+    /* reads every movie once and indexes its title */
+    public static TitleIndex load(Connection imdb) throws Exception {
+        TitleIndex index = new TitleIndex(1 << 16);
+        PreparedStatement load_statement = Metrics.prepare(imdb, "title_index_load", _load_sql);
+        ResultSet movie_set = load_statement.executeQuery();
+        while (movie_set.next()) {
+            int id = movie_set.getInt(1);
+            String name = movie_set.getString(2);
+            int year = movie_set.getInt(3);
+            if (movie_set.wasNull())
+                year = NO_YEAR;
+            index.add(id, name == null ? "" : name, year);
+        }
+        movie_set.close();
+        load_statement.close();
+        index.trim();
+        return index;
+    }
+
+    /* true when the title has no LIKE wildcards, so a substring lookup gives the same answer */
+    public static boolean isPlainSubstring(String title) {
+        return title.indexOf('%') < 0 && title.indexOf('_') < 0 && title.indexOf('\\') < 0;
+    }
+
+    /* true when text matches the LIKE pattern, both compared as given: % is any run of
+       characters, _ any one character, and \ makes the character after it literal */
+    public static boolean like(String text, String pattern) {
+        int t = 0;
+        int p = 0;
+        int retry_p = -1; /* just after the last % seen, and where text resumes against it */
+        int retry_t = 0;
+        while (t < text.length()) {
+            if (p < pattern.length()) {
+                char c = pattern.charAt(p);
+                if (c == '%') {
+                    retry_p = ++p;
+                    retry_t = t;
+                    continue;
+                }
+                if (c == '_') {
+                    p++;
+                    t++;
+                    continue;
+                }
+                if (c == '\\' && p + 1 < pattern.length())
+                    c = pattern.charAt(++p);
+                if (c == text.charAt(t)) {
+                    p++;
+                    t++;
+                    continue;
+                }
+            }
+            if (retry_p < 0)
+                return false;
+            p = retry_p;
+            t = ++retry_t;
+        }
+        while (p < pattern.length() && pattern.charAt(p) == '%')
+            p++;
+        return p == pattern.length();
+    }
+
+    public int size() {
+        return _size;
+    }
+
+    public int id(int doc) {
+        return _ids[doc];
+    }
+
+    public String name(int doc) {
+        return _names[doc];
+    }
+
+    public int year(int doc) {
+        return _years[doc];
+    }
+
+    /* returns the docs whose title contains the given text (ignoring case), in id order */
+    public int[] search(String title) {
+        String needle = title.toLowerCase(Locale.ROOT);
+        if (needle.length() < 3)
+            return scan(needle, null, _size);
+
+        /* intersect the posting lists of every trigram, starting from the shortest */
+        int shortest = -1;
+        int[] slots = new int[needle.length() - 2];
+        for (int i = 0; i < slots.length; i++) {
+            int slot = find(key(needle, i));
+            if (slot < 0)
+                return new int[0];
+            slots[i] = slot;
+            if (shortest < 0 || _posting_sizes[slot] < _posting_sizes[slots[shortest]])
+                shortest = i;
+        }
+        int[] candidates = Arrays.copyOf(_postings[slots[shortest]], _posting_sizes[slots[shortest]]);
+        int count = candidates.length;
+        for (int i = 0; i < slots.length && count > 0; i++) {
+            if (i != shortest)
+                count = intersect(candidates, count, _postings[slots[i]], _posting_sizes[slots[i]]);
+        }
+        /* trigrams can match out of order, so check the survivors */
+        return scan(needle, candidates, count);
+    }
+
+    private int[] scan(String needle, int[] docs, int count) {
+        int[] result = new int[count];
+        int found = 0;
+        for (int i = 0; i < count; i++) {
+            int doc = docs == null ? i : docs[i];
+            if (containsIgnoreCase(_names[doc], needle))
+                result[found++] = doc;
+        }
+        return found == count ? result : Arrays.copyOf(result, found);
+    }
+
+    private static boolean containsIgnoreCase(String name, String needle) {
+        int last = name.length() - needle.length();
+        for (int i = 0; i <= last; i++) {
+            if (name.regionMatches(true, i, needle, 0, needle.length()))
+                return true;
+        }
+        return false;
+    }
+
+    /* keeps in a[] only the docs also present in b[]; both are sorted */
+    private static int intersect(int[] a, int a_size, int[] b, int b_size) {
+        int i = 0, j = 0, out = 0;
+        while (i < a_size && j < b_size) {
+            if (a[i] < b[j]) {
+                i++;
+            } else if (a[i] > b[j]) {
+                j++;
+            } else {
+                a[out++] = a[i];
+                i++;
+                j++;
+            }
+        }
+        return out;
+    }
+
+    /**********************************************************/
+    /* building the index */
+
+    private void add(int id, String name, int year) {
+        if (_size == _ids.length) {
+            _ids = Arrays.copyOf(_ids, _size * 2);
+            _names = Arrays.copyOf(_names, _size * 2);
+            _years = Arrays.copyOf(_years, _size * 2);
+        }
+        int doc = _size++;
+        _ids[doc] = id;
+        _names[doc] = name;
+        _years[doc] = year;
+
+        String lower = name.toLowerCase(Locale.ROOT);
+        for (int i = 0; i + 3 <= lower.length(); i++) {
+            int slot = insert(key(lower, i));
+            int[] posting = _postings[slot];
+            int n = _posting_sizes[slot];
+            /* docs arrive in order, so a repeated trigram is always the last entry */
+            if (n > 0 && posting[n - 1] == doc)
+                continue;
+            if (n == posting.length)
+                _postings[slot] = posting = Arrays.copyOf(posting, n * 2);
+            posting[n] = doc;
+            _posting_sizes[slot] = n + 1;
+        }
+    }
+
+    private void trim() {
+        _ids = Arrays.copyOf(_ids, _size);
+        _names = Arrays.copyOf(_names, _size);
+        _years = Arrays.copyOf(_years, _size);
+        for (int slot = 0; slot < _keys.length; slot++) {
+            if (_postings[slot] != null)
+                _postings[slot] = Arrays.copyOf(_postings[slot], _posting_sizes[slot]);
+        }
+    }
+
+    private static long key(String s, int i) {
+        return ((long) s.charAt(i) << 32) | ((long) s.charAt(i + 1) << 16) | s.charAt(i + 2);
+    }
+
+    private static int hash(long key, int mask) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h >>> 32) & mask;
+    }
+
+    private int find(long key) {
+        int mask = _keys.length - 1;
+        for (int slot = hash(key, mask); ; slot = (slot + 1) & mask) {
+            if (_keys[slot] == key)
+                return slot;
+            if (_keys[slot] == -1L)
+                return -1;
+        }
+    }
+
+    private int insert(long key) {
+        int mask = _keys.length - 1;
+        int slot = hash(key, mask);
+        while (_keys[slot] != -1L) {
+            if (_keys[slot] == key)
+                return slot;
+            slot = (slot + 1) & mask;
+        }
+        if ((_key_count + 1) * 2 > _keys.length) {
+            grow();
+            return insert(key);
+        }
+        _keys[slot] = key;
+        _postings[slot] = new int[4];
+        _key_count++;
+        return slot;
+    }
+
+    private void grow() {
+        long[] old_keys = _keys;
+        int[][] old_postings = _postings;
+        int[] old_sizes = _posting_sizes;
+        _keys = new long[old_keys.length * 2];
+        Arrays.fill(_keys, -1L);
+        _postings = new int[old_keys.length * 2][];
+        _posting_sizes = new int[old_keys.length * 2];
+        int mask = _keys.length - 1;
+        for (int i = 0; i < old_keys.length; i++) {
+            if (old_keys[i] == -1L)
+                continue;
+            int slot = hash(old_keys[i], mask);
+            while (_keys[slot] != -1L)
+                slot = (slot + 1) & mask;
+            _keys[slot] = old_keys[i];
+            _postings[slot] = old_postings[i];
+            _posting_sizes[slot] = old_sizes[i];
+        }
+    }
+}
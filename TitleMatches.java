@@ -0,0 +1,91 @@
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Immutable ids, names and years of the movies matching one title pattern, in id order
+ */
+public class TitleMatches {
+
+    private final int[] _mids;
+    private final String[] _names;
+    private final String[] _years;
+
+    public TitleMatches(int[] mids, String[] names, String[] years) {
+        _mids = mids;
+        _names = names;
+        _years = years;
+    }
+
+    public int size() {
+        return _mids.length;
+    }
+
+    /* a fresh hit for the i-th match, without directors, actors or status */
+    public MovieHit hit(int i) {
+        return new MovieHit(_mids[i], _names[i], _years[i]);
+    }
+
+    /* the matches whose name also contains needle, which must be lower case */
+    public TitleMatches filter(String needle) {
+        int[] mids = new int[_mids.length];
+        String[] names = new String[_mids.length];
+        String[] years = new String[_mids.length];
+        int n = 0;
+        for (int i = 0; i < _mids.length; i++) {
+            if (_names[i] != null && _names[i].toLowerCase(Locale.ROOT).contains(needle)) {
+                mids[n] = _mids[i];
+                names[n] = _names[i];
+                years[n] = _years[i];
+                n++;
+            }
+        }
+        return new TitleMatches(Arrays.copyOf(mids, n), Arrays.copyOf(names, n),
+                Arrays.copyOf(years, n));
+    }
+
+    /* collects the ids, names and years of the movies passed through a MovieSink,
+       giving up once there are more than limit */
+    public static class Recorder {
+        private final int _limit;
+        private int[] _mids = new int[16];
+        private String[] _names = new String[16];
+        private String[] _years = new String[16];
+        private int _size;
+
+        public Recorder(int limit) {
+            _limit = limit;
+        }
+
+        public void record(List<MovieHit> movies) {
+            if (_size < 0)
+                return;
+            if (_size + movies.size() > _limit) {
+                _size = -1;
+                _mids = null;
+                _names = _years = null;
+                return;
+            }
+            if (_size + movies.size() > _mids.length) {
+                int length = Math.max(_mids.length * 2, _size + movies.size());
+                _mids = Arrays.copyOf(_mids, length);
+                _names = Arrays.copyOf(_names, length);
+                _years = Arrays.copyOf(_years, length);
+            }
+            for (MovieHit movie : movies) {
+                _mids[_size] = movie.getMid();
+                _names[_size] = movie.getName();
+                _years[_size] = movie.getYear();
+                _size++;
+            }
+        }
+
+        /* what was recorded, or null if it went past the limit */
+        public TitleMatches matches() {
+            if (_size < 0)
+                return null;
+            return new TitleMatches(Arrays.copyOf(_mids, _size), Arrays.copyOf(_names, _size),
+                    Arrays.copyOf(_years, _size));
+        }
+    }
+}
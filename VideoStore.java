@@ -1,5 +1,6 @@
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
+import java.io.PrintStream;
 import java.util.StringTokenizer;
 
 public class VideoStore {
@@ -10,8 +11,8 @@ public class VideoStore {
         System.out.println(" *** Please enter one of the following commands *** ");
         System.out.println("> search <movie title>");
         System.out.println("> plan [<plan id>]");
-        System.out.println("> rent <movie id>");
-        System.out.println("> return [<movie id>]");
+        System.out.println("> rent <movie id> [<movie id> ...]");
+        System.out.println("> return [<movie id> ... | all]");
         System.out.println("> fastsearch <movie title>");
         System.out.println("> quit");
         System.out.println();
@@ -37,100 +38,132 @@ public class VideoStore {
                 continue; // back to top of loop
             }
 
-            StringTokenizer st = new StringTokenizer(response);
-            String t = st.nextToken();
-
-            if (t.equals("search")) {
-                /* search for a movie whose title matches a string */
-                if (st.hasMoreTokens()) {
-                    String movie_title = st.nextToken("\n").trim(); /* read the rest of the line */
-                    System.out.println("Searching for the movie '"
-                                       + movie_title + "'");
-                    q.transaction_search(cid, movie_title);
-                } else {
-                    System.out.println("Error: need to type in movie title");
-                }
+            if (!command(cid, q, response, System.out))
+                System.exit(0);
+        }
+    }
+
+    public static boolean command(int cid, Query q, String response, PrintStream out) throws Exception {
+        /* runs one command line for customer cid, printing to out; returns false on quit */
+        StringTokenizer st = new StringTokenizer(response);
+        String t = st.nextToken();
+
+        if (t.equals("search")) {
+            /* search for a movie whose title matches a string */
+            if (st.hasMoreTokens()) {
+                String movie_title = st.nextToken("\n").trim(); /* read the rest of the line */
+                out.println("Searching for the movie '"
+                               + movie_title + "'");
+                q.transaction_search(cid, movie_title);
+            } else {
+                out.println("Error: need to type in movie title");
             }
-            else if (t.equals("plan")) {
-                /* choose a new rental plan, or, if none is given, then list all available plans */
-                if (st.hasMoreTokens()) {
-                    try{
-                        int plan_id = Integer.parseInt(st.nextToken());
-                        /* need to check that plan_id is a valid plan id in the database, */
-                        /* if yes, then set the new plan for the current customer */
-                        /* if not, then list all available plans */
-                        boolean correct_plan = q.helper_check_plan(plan_id);
-                        if (correct_plan) {
-                            System.out.println("Switching to plan " + plan_id);
-                            q.transaction_choose_plan(cid, plan_id);
-                        } else {
-                            System.out.println("Incorrect plan id " + plan_id);
-                            System.out.println("Available plans are:");
-                            q.transaction_list_plans();
-                        }
-                    } catch (NumberFormatException nfe){
-                        System.out.println("Error: provided plan number is not an integer");
+        }
+        else if (t.equals("plan")) {
+            /* choose a new rental plan, or, if none is given, then list all available plans */
+            if (st.hasMoreTokens()) {
+                try{
+                    int plan_id = Integer.parseInt(st.nextToken());
+                    /* need to check that plan_id is a valid plan id in the database, */
+                    /* if yes, then set the new plan for the current customer */
+                    /* if not, then list all available plans */
+                    boolean correct_plan = q.helper_check_plan(plan_id);
+                    if (correct_plan) {
+                        out.println("Switching to plan " + plan_id);
+                        q.transaction_choose_plan(cid, plan_id);
+                    } else {
+                        out.println("Incorrect plan id " + plan_id);
+                        out.println("Available plans are:");
+                        q.transaction_list_plans();
                     }
-                    
-                } else {
-                    System.out.println("Available plans:");
-                    q.transaction_list_plans();
+                } catch (NumberFormatException nfe){
+                    out.println("Error: provided plan number is not an integer");
                 }
+
+            } else {
+                out.println("Available plans:");
+                q.transaction_list_plans();
             }
-            else if (t.equals("rent")) {
-                /* rent the movie with the given movie id */
-                if (st.hasMoreTokens()){
-                    try{
-                        int mid = Integer.parseInt(st.nextToken());
-                        System.out.println("Renting the movie id " + mid);
-                        q.transaction_rent(cid, mid);
-                    } catch (NumberFormatException nfe){
-                        System.out.println("Error: need to give a numeric movie ID");
+        }
+        else if (t.equals("rent")) {
+            /* rent the movie(s) with the given movie id(s), all in one transaction */
+            if (st.hasMoreTokens()){
+                try{
+                    int[] mids = movie_ids(st);
+                    if (mids == null) {
+                        out.println("Error: need to give a numeric movie ID");
+                    } else if (mids.length == 1) {
+                        out.println("Renting the movie id " + mids[0]);
+                        q.transaction_rent(cid, mids[0]);
+                    } else {
+                        out.println("Renting " + mids.length + " movies");
+                        q.transaction_rent_batch(cid, mids);
                     }
-                }
-                else{
-                    System.out.println("Error: need to give a movie ID");
+                } catch (NumberFormatException nfe){
+                    out.println("Error: need to give a numeric movie ID");
                 }
             }
-            else if (t.equals("return")) {
-                /* return a movie previously rented */
-                if (st.hasMoreTokens()){
-                    try{
-                        int mid = Integer.parseInt(st.nextToken());  
-
+            else{
+                out.println("Error: need to give a movie ID");
+            }
+        }
+        else if (t.equals("return")) {
+            /* return movies previously rented: one, a list, or all of them */
+            if (st.hasMoreTokens()){
+                try{
+                    int[] mids = movie_ids(st);
+                    if (mids == null) {
+                        out.println("Returning all movies");
+                        q.transaction_return_all(cid);
+                    } else if (mids.length == 1) {
                         /* return the movie with mid */
-                        System.out.println("Returning the movie id " + mid);
-                        q.transaction_return(cid, mid);
-                    } catch (NumberFormatException nfe){
-                        System.out.println("Error: need to give a numeric movie ID");
+                        out.println("Returning the movie id " + mids[0]);
+                        q.transaction_return(cid, mids[0]);
+                    } else {
+                        out.println("Returning " + mids.length + " movies");
+                        q.transaction_return_batch(cid, mids);
                     }
-                    
-                }
-                else{
-                    q.transaction_list_user_rentals(cid);
+                } catch (NumberFormatException nfe){
+                    out.println("Error: need to give a numeric movie ID");
                 }
 
             }
-            else if (t.equals("fastsearch")) {
-                /* same as search, only faster */
-                if (st.hasMoreTokens()) {
-                    String movie_title = st.nextToken("\n").trim();
-                    System.out.println("Fast Searching for the movie '"
-                                       + movie_title + "'");
-                    q.transaction_fast_search(cid, movie_title);
-                } else {
-                    System.out
-                        .println("Error: need to type in movie title");
-                }
-            }
-            else if (t.equals("quit")) {
-                System.exit(0);
+            else{
+                q.transaction_list_user_rentals(cid);
             }
-            else {
-                System.out.println("Error: unrecognized command '" + t
-                                   + "'");
+
+        }
+        else if (t.equals("fastsearch")) {
+            /* same as search, only faster */
+            if (st.hasMoreTokens()) {
+                String movie_title = st.nextToken("\n").trim();
+                out.println("Fast Searching for the movie '"
+                               + movie_title + "'");
+                q.transaction_fast_search(cid, movie_title);
+            } else {
+                out.println("Error: need to type in movie title");
             }
         }
+        else if (t.equals("quit")) {
+            return false;
+        }
+        else {
+            out.println("Error: unrecognized command '" + t
+                           + "'");
+        }
+        return true;
+    }
+
+    private static int[] movie_ids(StringTokenizer st) {
+        /* the remaining tokens as movie ids, or null for the single word "all" */
+        int[] mids = new int[st.countTokens()];
+        for (int i = 0; i < mids.length; i++) {
+            String token = st.nextToken();
+            if (mids.length == 1 && token.equals("all"))
+                return null;
+            mids[i] = Integer.parseInt(token);
+        }
+        return mids;
     }
 
     public static void main(String[] args) throws Exception {
@@ -0,0 +1,179 @@
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.StringReader;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.Properties;
+import java.util.Set;
+import java.util.StringTokenizer;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Serves VideoStore commands to many customers over a line protocol
+ *
+ * A client first sends "login <name> <password>" and then the same commands
+ * as the VideoStore console.  Every reply is "OK" or "ERR <message>", followed
+ * by the command output and a line holding a single "." (output lines that
+ * start with "." get an extra "." in front, as in SMTP).  "metrics" replies
+ * with the Metrics snapshot, but only to sessions logged in as one of the
+ * metricsLogins in dbconn.config.
+ */
+public class VideoStoreServer {
+
+    private final QueryPool _pool;
+    private final Set<String> _metrics_logins;
+
+    public VideoStoreServer(QueryPool pool, Set<String> metrics_logins) {
+        _pool = pool;
+        _metrics_logins = metrics_logins;
+    }
+
+    public void serve(int port) throws Exception {
+        /* each client session runs on its own virtual thread (a platform thread
+           before JDK 21), so a session blocked on JDBC or on its socket costs almost nothing */
+        ServerSocket server = new ServerSocket(port);
+        ExecutorService sessions = Query.task_executor();
+        try {
+            while (true) {
+                final Socket client = server.accept();
+                sessions.submit(() -> {
+                    session(client);
+                    return null;
+                });
+            }
+        } finally {
+            sessions.shutdownNow();
+            server.close();
+        }
+    }
+
+    private void session(Socket client) throws Exception {
+        try (Socket socket = client) {
+            BufferedReader in = new BufferedReader(
+                    new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            PrintWriter out = new PrintWriter(socket.getOutputStream(), false, StandardCharsets.UTF_8);
+            int cid = -1;
+            boolean admin = false;
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.trim().length() == 0)
+                    continue;
+                StringTokenizer st = new StringTokenizer(line);
+                String t = st.nextToken();
+                if (t.equals("quit")) {
+                    reply(out, null, "");
+                    return;
+                }
+                if (t.equals("login")) {
+                    if (st.countTokens() != 2) {
+                        reply(out, "need login name and password", "");
+                        continue;
+                    }
+                    String name = st.nextToken();
+                    String password = st.nextToken();
+                    try {
+                        cid = login(name, password);
+                    } catch (Exception e) {
+                        reply(out, "" + e.getMessage(), "");
+                        continue;
+                    }
+                    admin = cid >= 0 && _metrics_logins.contains(name);
+                    if (cid >= 0)
+                        reply(out, null, "cid " + cid + "\n");
+                    else
+                        reply(out, "login failed", "");
+                    continue;
+                }
+                if (cid < 0) {
+                    reply(out, "need to login first", "");
+                    continue;
+                }
+                if (t.equals("metrics")) {
+                    /* statement-level internals are for operators, not customers */
+                    if (admin)
+                        reply(out, null, Metrics.dump());
+                    else
+                        reply(out, "metrics are not available to this login", "");
+                    continue;
+                }
+                ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+                String error = null;
+                try {
+                    execute(cid, line, new PrintStream(buffer, true, "UTF-8"));
+                } catch (Exception e) {
+                    error = "" + e.getMessage();
+                }
+                reply(out, error, buffer.toString("UTF-8"));
+            }
+        }
+    }
+
+    private int login(String name, String password) throws Exception {
+        /* authenticates on a pooled Query, returns the cid or -1 */
+        Query q = _pool.acquire();
+        try {
+            int result = q.transaction_login(name, password);
+            _pool.release(q);
+            return result;
+        } catch (Exception e) {
+            _pool.discard(q);
+            throw e;
+        }
+    }
+
+    private void execute(int cid, String line, PrintStream out) throws Exception {
+        /* borrows a Query for one command; a failed command may leave its
+           connection inside a transaction, so that Query is not reused */
+        Query q = _pool.acquire();
+        try {
+            q.setOutput(out);
+            VideoStore.command(cid, q, line, out);
+            q.setOutput(System.out);
+            _pool.release(q);
+        } catch (Exception e) {
+            _pool.discard(q);
+            throw e;
+        }
+    }
+
+    private static void reply(PrintWriter out, String error, String body) throws Exception {
+        out.print(error == null ? "OK" : "ERR " + error.replace('\n', ' '));
+        out.print("\r\n");
+        BufferedReader lines = new BufferedReader(new StringReader(body));
+        String line;
+        while ((line = lines.readLine()) != null) {
+            if (line.startsWith("."))
+                out.print(".");
+            out.print(line);
+            out.print("\r\n");
+        }
+        out.print(".\r\n");
+        out.flush();
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.out.println("Usage: java VideoStoreServer PORT POOL_SIZE");
+            System.exit(1);
+        }
+        Properties config = new Properties();
+        config.load(new FileInputStream(System.getProperty("dbconn.config", "dbconn.config")));
+        Set<String> metrics_logins = new HashSet<String>();
+        for (String login : config.getProperty("metricsLogins", "").split(",")) {
+            if (login.trim().length() > 0)
+                metrics_logins.add(login.trim());
+        }
+        QueryPool pool = new QueryPool(Integer.parseInt(args[1]));
+        try {
+            new VideoStoreServer(pool, metrics_logins).serve(Integer.parseInt(args[0]));
+        } finally {
+            pool.close();
+        }
+    }
+}